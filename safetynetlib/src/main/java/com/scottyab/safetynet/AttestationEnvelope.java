@@ -0,0 +1,212 @@
+package com.scottyab.safetynet;
+
+import android.util.Base64;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Compact binary encoding of the JWS returned by SafetyNet attest, for uploading to your server
+ * instead of the raw {@code attestationResponse.getJwsResult()}.
+ * <p>
+ * The header, payload and signature are carried as raw bytes rather than base64 text, and when
+ * the {@code x5c} certificate chain in the header is one the server already knows, it is replaced
+ * by an 8 byte chain id. The server side decoder
+ * ({@code com.scottyab.safetynet.server.AttestationEnvelopeDecoder}) rebuilds the exact original
+ * JWS so the signature still verifies.
+ * <p>
+ * Layout (varint = unsigned LEB128):
+ * <pre>
+ * 'S' VERSION FORMAT
+ * FORMAT_VERBATIM:  varint len, header b64 | varint len, payload b64 | varint len, signature b64
+ * FORMAT_DECODED:   varint len, header json | varint len, payload | varint len, signature
+ * FORMAT_CHAIN_REF: varint len, header json before x5c | varint len, header json after x5c |
+ *                   8 byte chain id | varint len, payload | varint len, signature
+ * </pre>
+ */
+public final class AttestationEnvelope {
+
+    static final byte MAGIC = 'S';
+    static final byte VERSION = 1;
+
+    /**
+     * Segments copied as-is, used when a segment isn't canonical base64url so re-encoding the
+     * decoded bytes wouldn't reproduce the signed text
+     */
+    static final byte FORMAT_VERBATIM = 0;
+    static final byte FORMAT_DECODED = 1;
+    static final byte FORMAT_CHAIN_REF = 2;
+
+    private static final int BASE64URL = Base64.URL_SAFE | Base64.NO_WRAP | Base64.NO_PADDING;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    private AttestationEnvelope() {
+    }
+
+    /**
+     * @param jwsResult         from {@code attestationResponse.getJwsResult()}
+     * @param knownChainIds     chain ids the server has said it knows (see {@link #chainId(String)}),
+     *                          may be empty in which case the chain is sent in full
+     * @return the envelope bytes to upload
+     * @throws IllegalArgumentException if jwsResult isn't a compact JWS
+     */
+    @NonNull
+    public static byte[] encode(@NonNull String jwsResult, @NonNull Collection<Long> knownChainIds) {
+        final String[] segments = splitJws(jwsResult);
+
+        final byte[] header = decodeCanonical(segments[0]);
+        final byte[] payload = decodeCanonical(segments[1]);
+        final byte[] signature = decodeCanonical(segments[2]);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(jwsResult.length());
+        out.write(MAGIC);
+        out.write(VERSION);
+
+        if (header == null || payload == null || signature == null) {
+            out.write(FORMAT_VERBATIM);
+            for (String segment : segments) {
+                writeBytes(out, segment.getBytes(US_ASCII));
+            }
+            return out.toByteArray();
+        }
+
+        final int[] chainSpan = findX5cSpan(header);
+        final Long chainId = chainSpan == null ? null : chainId(header, chainSpan);
+        if (chainId != null && knownChainIds.contains(chainId)) {
+            out.write(FORMAT_CHAIN_REF);
+            writeBytes(out, Arrays.copyOfRange(header, 0, chainSpan[0]));
+            writeBytes(out, Arrays.copyOfRange(header, chainSpan[1], header.length));
+            writeLong(out, chainId);
+        } else {
+            out.write(FORMAT_DECODED);
+            writeBytes(out, header);
+        }
+        writeBytes(out, payload);
+        writeBytes(out, signature);
+        return out.toByteArray();
+    }
+
+    /**
+     * Id of the {@code x5c} certificate chain in the JWS header: the first 8 bytes (big endian) of
+     * the SHA-256 of the exact JSON text of the x5c array.
+     *
+     * @return the id or null if the header has no x5c chain
+     */
+    @Nullable
+    public static Long chainId(@NonNull String jwsResult) {
+        final byte[] header = Base64.decode(splitJws(jwsResult)[0], BASE64URL);
+        final int[] chainSpan = findX5cSpan(header);
+        return chainSpan == null ? null : chainId(header, chainSpan);
+    }
+
+    /**
+     * Parses a chain id as listed by the server's {@code GET /chains}, a signed decimal string
+     *
+     * @throws NumberFormatException if it isn't one
+     */
+    public static long parseChainId(@NonNull String chainId) {
+        return Long.parseLong(chainId.trim());
+    }
+
+    private static long chainId(byte[] header, int[] chainSpan) {
+        try {
+            MessageDigest md = MessageDigest.getInstance(Utils.SHA_256);
+            md.update(header, chainSpan[0], chainSpan[1] - chainSpan[0]);
+            byte[] digest = md.digest();
+            long id = 0;
+            for (int i = 0; i < 8; i++) {
+                id = (id << 8) | (digest[i] & 0xFF);
+            }
+            return id;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String[] splitJws(String jwsResult) {
+        //the JWT (JSON WEB TOKEN) is just a 3 base64 encoded parts concatenated by a . character
+        final String[] segments = jwsResult.split("\\.", -1);
+        if (segments.length != 3) {
+            throw new IllegalArgumentException("jwsResult is not a compact JWS");
+        }
+        return segments;
+    }
+
+    /**
+     * @return the decoded bytes or null if re-encoding them wouldn't give back the same text
+     */
+    @Nullable
+    private static byte[] decodeCanonical(String segment) {
+        try {
+            byte[] decoded = Base64.decode(segment, BASE64URL);
+            return segment.equals(Base64.encodeToString(decoded, BASE64URL)) ? decoded : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Finds the JSON array value of the "x5c" member, the base64 certificates can't contain
+     * brackets so the first ']' closes it.
+     *
+     * @return [start, end) of the array text or null if not present
+     */
+    @Nullable
+    static int[] findX5cSpan(byte[] headerJson) {
+        final byte[] key = "\"x5c\"".getBytes(UTF_8);
+        outer:
+        for (int i = 0; i <= headerJson.length - key.length; i++) {
+            for (int k = 0; k < key.length; k++) {
+                if (headerJson[i + k] != key[k]) {
+                    continue outer;
+                }
+            }
+            int pos = skipWhitespace(headerJson, i + key.length);
+            if (pos >= headerJson.length || headerJson[pos] != ':') {
+                continue;
+            }
+            pos = skipWhitespace(headerJson, pos + 1);
+            if (pos >= headerJson.length || headerJson[pos] != '[') {
+                return null;
+            }
+            for (int end = pos + 1; end < headerJson.length; end++) {
+                if (headerJson[end] == ']') {
+                    return new int[]{pos, end + 1};
+                }
+            }
+            return null;
+        }
+        return null;
+    }
+
+    private static int skipWhitespace(byte[] json, int pos) {
+        while (pos < json.length && (json[pos] == ' ' || json[pos] == '\t' || json[pos] == '\n' || json[pos] == '\r')) {
+            pos++;
+        }
+        return pos;
+    }
+
+    private static void writeBytes(ByteArrayOutputStream out, byte[] bytes) {
+        int length = bytes.length;
+        while ((length & ~0x7F) != 0) {
+            out.write((length & 0x7F) | 0x80);
+            length >>>= 7;
+        }
+        out.write(length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static void writeLong(ByteArrayOutputStream out, long value) {
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            out.write((int) (value >>> shift) & 0xFF);
+        }
+    }
+}
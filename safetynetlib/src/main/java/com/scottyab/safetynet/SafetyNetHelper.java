@@ -1,18 +1,33 @@
 package com.scottyab.safetynet;
 
 import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
 import android.text.TextUtils;
 import android.util.Base64;
 import android.util.Log;
 
+import androidx.annotation.MainThread;
+import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.lifecycle.Lifecycle;
+import androidx.lifecycle.LifecycleEventObserver;
+import androidx.lifecycle.LifecycleOwner;
 import com.google.android.gms.common.api.ApiException;
 import com.google.android.gms.safetynet.SafetyNet;
 
+import java.lang.ref.WeakReference;
 import java.security.SecureRandom;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Simple wrapper to request google Play services - SafetyNet test
@@ -20,6 +35,15 @@ import java.util.List;
  * <p/>
  * Doesn't handle Google play services errors, just calls error on callback.
  * <p/>
+ * The attestation response is decoded and validated on a background thread, the
+ * {@link SafetyNetWrapperCallback} is delivered on the main thread unless another executor is
+ * set via {@link #setCallbackExecutor(Executor)}.
+ * <p/>
+ * Where several parts of an app need the result, register a {@link VerdictListener} and call
+ * {@link #refreshVerdict(Context)} rather than each making its own request.
+ * <p/>
+ * Use {@link #requestTest(Context, LifecycleOwner, SafetyNetWrapperCallback)} from Activities and
+ * Fragments so a request doesn't keep them alive once destroyed.
  */
 public class SafetyNetHelper {
 
@@ -36,19 +60,29 @@ public class SafetyNetHelper {
      */
     private static int MAX_TIMESTAMP_DURATION = 2 * 60 * 1000;
 
-    private final SecureRandom secureRandom;
+    /**
+     * Shared by all helper instances, the parse/validate stage is short lived so a single
+     * background thread is enough and keeps the work off the main thread.
+     */
+    private static final ExecutorService WORKER_EXECUTOR = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "SafetyNetHelper-worker");
+        thread.setDaemon(true);
+        return thread;
+    });
 
-    //used for local validation of API response payload
-    private byte[] requestNonce;
-    private long requestTimestamp;
-    private String packageName;
+    private final SecureRandom secureRandom;
 
-    private List<String> apkCertificateDigests;
+    private static final Executor MAIN_THREAD_EXECUTOR = new MainThreadExecutor();
 
-    private SafetyNetWrapperCallback callback;
+    private volatile Executor callbackExecutor = MAIN_THREAD_EXECUTOR;
 
     private String apiKey;
-    private SafetyNetResponse lastResponse;
+    private volatile SafetyNetResponse lastResponse;
+
+    private final CopyOnWriteArrayList<VerdictSubscription> verdictListeners = new CopyOnWriteArrayList<>();
+    private final AtomicBoolean verdictRefreshInFlight = new AtomicBoolean();
+    private final AtomicLong verdictSequence = new AtomicLong();
+    private volatile SafetyNetVerdict currentVerdict;
 
     /**
      * @param apiKey required for SafetyNet.attest()
@@ -75,6 +109,27 @@ public class SafetyNetHelper {
         void success(boolean ctsProfileMatch, boolean basicIntegrity);
     }
 
+    /**
+     * Observes the verdict of every attestation made by this helper, unlike
+     * {@link SafetyNetWrapperCallback} it's called each time a new attestation completes.
+     */
+    public interface VerdictListener {
+        void onVerdict(SafetyNetVerdict verdict);
+    }
+
+    /**
+     * Sets the executor the {@link SafetyNetWrapperCallback} is delivered on, by default this is
+     * the main thread.
+     *
+     * @param callbackExecutor i.e. a background executor if the caller doesn't touch the UI
+     */
+    public void setCallbackExecutor(@NonNull Executor callbackExecutor) {
+        if (callbackExecutor == null) {
+            throw new IllegalArgumentException("callbackExecutor must not be null");
+        }
+        this.callbackExecutor = callbackExecutor;
+    }
+
     /**
      * Call the SafetyNet test to check if this device profile /ROM has passed the CTS test
      *
@@ -82,44 +137,194 @@ public class SafetyNetHelper {
      * @param safetyNetWrapperCallback results and error handling
      */
     public void requestTest(final Context context, final SafetyNetWrapperCallback safetyNetWrapperCallback) {
-        packageName = context.getPackageName();
-        callback = safetyNetWrapperCallback;
-        apkCertificateDigests = Utils.calcApkCertificateDigests(context, packageName);
-        Log.d(TAG, "apkCertificateDigests:" + apkCertificateDigests);
-        runSafetyNetTest(context);
+        runSafetyNetTest(context, new Request(safetyNetWrapperCallback, false));
+    }
+
+    /**
+     * As {@link #requestTest(Context, SafetyNetWrapperCallback)} but bound to the owner's lifecycle.
+     * When the owner is destroyed the callback is released, so it (and the Activity it likely
+     * references) isn't kept alive until the attestation completes, and the result is dropped
+     * without being parsed or validated unless verdict listeners are registered.
+     *
+     * @param context                  used to build and init the GoogleApiClient
+     * @param owner                    i.e. the Activity or Fragment making the request
+     * @param safetyNetWrapperCallback results and error handling, never called once owner is destroyed
+     */
+    @MainThread
+    public void requestTest(final Context context, final LifecycleOwner owner, final SafetyNetWrapperCallback safetyNetWrapperCallback) {
+        final Lifecycle lifecycle = owner.getLifecycle();
+        if (lifecycle.getCurrentState() == Lifecycle.State.DESTROYED) {
+            Log.v(TAG, "SafetyNet request owner already destroyed, ignoring request");
+            return;
+        }
+        final Request request = new Request(safetyNetWrapperCallback, false);
+        request.bindTo(lifecycle);
+        runSafetyNetTest(context.getApplicationContext() != null ? context.getApplicationContext() : context, request);
+    }
+
+    /**
+     * Subscribe to the verdict stream. If an attestation has already completed the current
+     * verdict is replayed straight away. Listeners are called on the callback executor, and
+     * never get the same verdict twice.
+     * <p>
+     * The helper holds the listener strongly until {@link #removeVerdictListener(VerdictListener)},
+     * from an Activity or Fragment use {@link #addVerdictListener(LifecycleOwner, VerdictListener)}.
+     *
+     * @param listener notified of the current and future verdicts
+     */
+    public void addVerdictListener(@NonNull VerdictListener listener) {
+        subscribe(new VerdictSubscription(listener));
+    }
+
+    /**
+     * As {@link #addVerdictListener(VerdictListener)} but the listener is removed when the owner
+     * is destroyed, so it (and the Activity it likely references) isn't kept alive by the helper.
+     *
+     * @param owner    i.e. the Activity or Fragment subscribing
+     * @param listener notified of the current and future verdicts until owner is destroyed
+     */
+    @MainThread
+    public void addVerdictListener(@NonNull LifecycleOwner owner, @NonNull VerdictListener listener) {
+        final Lifecycle lifecycle = owner.getLifecycle();
+        if (lifecycle.getCurrentState() == Lifecycle.State.DESTROYED) {
+            Log.v(TAG, "VerdictListener owner already destroyed, ignoring");
+            return;
+        }
+        final VerdictSubscription subscription = new VerdictSubscription(listener);
+        if (subscribe(subscription)) {
+            subscription.bindTo(lifecycle);
+        }
     }
 
-    private void runSafetyNetTest(Context context) {
+    private boolean subscribe(VerdictSubscription subscription) {
+        synchronized (verdictListeners) {
+            if (findSubscription(subscription.listener) != null) {
+                return false;
+            }
+            verdictListeners.add(subscription);
+        }
+        //replays the verdict current when this runs, so a verdict published in between isn't delivered twice
+        callbackExecutor.execute(subscription::dispatchLatest);
+        return true;
+    }
+
+    public void removeVerdictListener(@NonNull VerdictListener listener) {
+        final VerdictSubscription subscription = findSubscription(listener);
+        if (subscription != null) {
+            subscription.unsubscribe();
+        }
+    }
+
+    @Nullable
+    private VerdictSubscription findSubscription(VerdictListener listener) {
+        for (VerdictSubscription subscription : verdictListeners) {
+            if (subscription.listener == listener) {
+                return subscription;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the verdict of the most recently completed attestation, or null if none has completed
+     */
+    @Nullable
+    public SafetyNetVerdict getCurrentVerdict() {
+        return currentVerdict;
+    }
+
+    /**
+     * Starts an attestation to update the verdict stream. If one is already in flight this is a
+     * no-op, so any number of subscribers share a single attestation.
+     *
+     * @param context used to build and init the GoogleApiClient
+     * @return true if a new attestation was started
+     */
+    public boolean refreshVerdict(final Context context) {
+        if (!verdictRefreshInFlight.compareAndSet(false, true)) {
+            Log.v(TAG, "SafetyNet verdict refresh already in flight");
+            return false;
+        }
+        try {
+            runSafetyNetTest(context, new Request(null, true));
+        } catch (RuntimeException e) {
+            //nothing was started so nothing will clear the flag, don't block later refreshes
+            verdictRefreshInFlight.set(false);
+            throw e;
+        }
+        return true;
+    }
+
+    private void runSafetyNetTest(Context context, final Request request) {
         Log.v(TAG, "running SafetyNet.API Test");
-        requestNonce = generateOneTimeRequestNonce();
-        requestTimestamp = System.currentTimeMillis();
+        //used for local validation of API response payload, held per request so concurrent
+        //requests don't validate against each other's nonce
+        final Context appContext = context.getApplicationContext() != null ? context.getApplicationContext() : context;
+        final String packageName = context.getPackageName();
+        final byte[] requestNonce = generateOneTimeRequestNonce();
+        final long requestTimestamp = System.currentTimeMillis();
+        final Executor deliveryExecutor = callbackExecutor;
 
         SafetyNet.getClient(context).attest(requestNonce, apiKey)
-                .addOnSuccessListener(attestationResponse -> {
+                .addOnSuccessListener(WORKER_EXECUTOR, attestationResponse -> {
+                    if (request.isAbandoned() && verdictListeners.isEmpty()) {
+                        Log.v(TAG, "nobody is listening for the SafetyNet result, skipping validation");
+                        request.complete(verdictRefreshInFlight);
+                        return;
+                    }
                     final String jwsResult = attestationResponse.getJwsResult();
 
                     final SafetyNetResponse response = parseJsonWebSignature(jwsResult);
                     lastResponse = response;
 
+                    final List<String> apkCertificateDigests = Utils.calcApkCertificateDigests(appContext, packageName);
+                    Log.d(TAG, "apkCertificateDigests:" + apkCertificateDigests);
+
                     //validate payload of the response
-                    if (validateSafetyNetResponsePayload(response)) {
-                         callback.success(response.isCtsProfileMatch(), response.isBasicIntegrity());
+                    if (validateSafetyNetResponsePayload(response, requestNonce, requestTimestamp, packageName, apkCertificateDigests)) {
+                        deliver(deliveryExecutor, request, SafetyNetVerdict.success(response));
                     } else {
-                        callback.error(RESPONSE_VALIDATION_FAILED, "Response payload validation failed");
+                        deliver(deliveryExecutor, request, SafetyNetVerdict.error(RESPONSE_VALIDATION_FAILED, "Response payload validation failed"));
                     }
                 })
-                .addOnFailureListener(e -> {
+                .addOnFailureListener(WORKER_EXECUTOR, e -> {
                     if (e instanceof ApiException) {
                         // when there's a network error this message is poor.
                         ApiException apiException = (ApiException) e;
-                        callback.error(RESPONSE_VALIDATION_FAILED, "ApiException[" + apiException.getStatusCode() + "] " + apiException.getMessage());
+                        deliver(deliveryExecutor, request, SafetyNetVerdict.error(RESPONSE_VALIDATION_FAILED, "ApiException[" + apiException.getStatusCode() + "] " + apiException.getMessage()));
                     } else {
                         Log.d(TAG, "Error: " + e.getMessage());
-                        callback.error(RESPONSE_VALIDATION_FAILED, "Response payload validation failed");
+                        deliver(deliveryExecutor, request, SafetyNetVerdict.error(RESPONSE_VALIDATION_FAILED, "Response payload validation failed"));
                     }
                 });
     }
 
+    /**
+     * Publishes the verdict to the stream and hands it to the request's callback (if any)
+     */
+    private void deliver(Executor deliveryExecutor, Request request, SafetyNetVerdict completed) {
+        final SafetyNetVerdict verdict;
+        synchronized (verdictSequence) {
+            verdict = completed.withSequence(verdictSequence.incrementAndGet());
+            currentVerdict = verdict;
+        }
+        request.complete(verdictRefreshInFlight);
+        deliveryExecutor.execute(() -> {
+            //read at delivery time, the owner may have been destroyed while this was queued
+            final SafetyNetWrapperCallback callback = request.takeCallback();
+            if (callback != null) {
+                if (verdict.isSuccess()) {
+                    callback.success(verdict.isCtsProfileMatch(), verdict.isBasicIntegrity());
+                } else {
+                    callback.error(verdict.getErrorCode(), verdict.getErrorMessage());
+                }
+            }
+            for (VerdictSubscription subscription : verdictListeners) {
+                subscription.dispatchLatest();
+            }
+        });
+    }
+
     /**
      * Gets the previous successful call to the safetynetAPI - this is mainly for debug purposes.
      *
@@ -132,9 +337,14 @@ public class SafetyNetHelper {
      * WARNING!! This should be done on your Server not in app as it could be hooked/tricked into
      * returning valid response.
      * @param response from SafetyNet attest
+     * @param requestNonce nonce sent with the attest request
+     * @param requestTimestamp time the attest request was made
+     * @param packageName of the requesting app
+     * @param apkCertificateDigests local certificate digests of the requesting app
      * @return true if valid | false if not
      */
-    private boolean validateSafetyNetResponsePayload(SafetyNetResponse response) {
+    private boolean validateSafetyNetResponsePayload(SafetyNetResponse response, byte[] requestNonce, long requestTimestamp,
+                                                     String packageName, List<String> apkCertificateDigests) {
         if (response == null) {
             Log.e(TAG, "SafetyNetResponse is null.");
             return false;
@@ -193,4 +403,150 @@ public class SafetyNetHelper {
         secureRandom.nextBytes(nonce);
         return nonce;
     }
+
+    /**
+     * A single attest call. The Play services listeners hold this rather than the callback, so
+     * clearing the callback when the owner's lifecycle is destroyed releases it straight away.
+     */
+    private static class Request implements LifecycleEventObserver {
+        private volatile SafetyNetWrapperCallback callback;
+        private final boolean verdictRefresh;
+        private volatile WeakReference<Lifecycle> lifecycleRef;
+
+        /**
+         * @param callback       null when only the verdict listeners are interested
+         * @param verdictRefresh true if started by refreshVerdict()
+         */
+        Request(@Nullable SafetyNetWrapperCallback callback, boolean verdictRefresh) {
+            this.callback = callback;
+            this.verdictRefresh = verdictRefresh;
+        }
+
+        @MainThread
+        void bindTo(Lifecycle lifecycle) {
+            lifecycleRef = new WeakReference<>(lifecycle);
+            lifecycle.addObserver(this);
+        }
+
+        @Override
+        public void onStateChanged(@NonNull LifecycleOwner source, @NonNull Lifecycle.Event event) {
+            if (event == Lifecycle.Event.ON_DESTROY) {
+                Log.v(TAG, "SafetyNet request owner destroyed, releasing callback");
+                callback = null;
+                source.getLifecycle().removeObserver(this);
+            }
+        }
+
+        /**
+         * @return true if the owner was destroyed so only verdict listeners could want the result,
+         * a refresh always publishes to {@link #getCurrentVerdict()} so is never abandoned
+         */
+        boolean isAbandoned() {
+            return !verdictRefresh && callback == null;
+        }
+
+        /**
+         * @return the callback, at most once
+         */
+        @Nullable
+        SafetyNetWrapperCallback takeCallback() {
+            final SafetyNetWrapperCallback taken = callback;
+            callback = null;
+            return taken;
+        }
+
+        /**
+         * Called once the attestation has completed, on any thread
+         */
+        void complete(AtomicBoolean verdictRefreshInFlight) {
+            if (verdictRefresh) {
+                verdictRefreshInFlight.set(false);
+            }
+            final WeakReference<Lifecycle> ref = lifecycleRef;
+            if (ref != null) {
+                //Lifecycle observers may only be removed on the main thread
+                MAIN_THREAD_EXECUTOR.execute(() -> {
+                    final Lifecycle lifecycle = ref.get();
+                    if (lifecycle != null) {
+                        lifecycle.removeObserver(this);
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * A registered {@link VerdictListener}, optionally bound to its owner's lifecycle. Remembers
+     * the last verdict it delivered so replay and publish can't both deliver the same one, and
+     * so a pooled callback executor running them out of order can't deliver an older one after
+     * a newer one.
+     */
+    private class VerdictSubscription implements LifecycleEventObserver {
+        final VerdictListener listener;
+        private final AtomicReference<SafetyNetVerdict> lastDelivered = new AtomicReference<>();
+        private volatile WeakReference<Lifecycle> lifecycleRef;
+
+        VerdictSubscription(VerdictListener listener) {
+            this.listener = listener;
+        }
+
+        @MainThread
+        void bindTo(Lifecycle lifecycle) {
+            lifecycleRef = new WeakReference<>(lifecycle);
+            lifecycle.addObserver(this);
+        }
+
+        /**
+         * Delivers the current verdict, unless it or a newer one has already been delivered or
+         * we've unsubscribed
+         */
+        void dispatchLatest() {
+            final SafetyNetVerdict verdict = currentVerdict;
+            if (verdict == null || !verdictListeners.contains(this)) {
+                return;
+            }
+            SafetyNetVerdict last;
+            do {
+                last = lastDelivered.get();
+                if (last != null && last.getSequence() >= verdict.getSequence()) {
+                    return;
+                }
+            } while (!lastDelivered.compareAndSet(last, verdict));
+            listener.onVerdict(verdict);
+        }
+
+        @Override
+        public void onStateChanged(@NonNull LifecycleOwner source, @NonNull Lifecycle.Event event) {
+            if (event == Lifecycle.Event.ON_DESTROY) {
+                Log.v(TAG, "VerdictListener owner destroyed, removing listener");
+                unsubscribe();
+            }
+        }
+
+        void unsubscribe() {
+            verdictListeners.remove(this);
+            final WeakReference<Lifecycle> ref = lifecycleRef;
+            if (ref != null) {
+                //Lifecycle observers may only be removed on the main thread
+                MAIN_THREAD_EXECUTOR.execute(() -> {
+                    final Lifecycle lifecycle = ref.get();
+                    if (lifecycle != null) {
+                        lifecycle.removeObserver(this);
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Posts to the main thread, the default for delivering {@link SafetyNetWrapperCallback}
+     */
+    private static class MainThreadExecutor implements Executor {
+        private final Handler handler = new Handler(Looper.getMainLooper());
+
+        @Override
+        public void execute(@NonNull Runnable command) {
+            handler.post(command);
+        }
+    }
 }
@@ -8,6 +8,7 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.util.Arrays;
+import java.util.EnumSet;
 
 /**
  * SafetyNet API payload Response (once unencoded from JSON Web token)
@@ -25,17 +26,115 @@ import java.util.Arrays;
  * "advice": "LOCK_BOOTLOADER,RESTORE_TO_FACTORY_ROM"
  * }
  * <p>
+ * The verdict booleans, evaluation types and advice are also packed into a single int,
+ * see {@link #getFlags()}, which is cheap to store, compare and aggregate.
  */
 public class SafetyNetResponse {
 
+    public static final int FLAG_CTS_PROFILE_MATCH = 1;
+    public static final int FLAG_BASIC_INTEGRITY = 1 << 1;
+    /**
+     * Set when the evaluationType contained a value not in {@link EvaluationType}, check {@link #getEvaluationType()}
+     */
+    public static final int FLAG_UNRECOGNISED_EVALUATION_TYPE = 1 << 2;
+    /**
+     * Set when the advice contained a value not in {@link Advice}, check {@link #getAdvice()}
+     */
+    public static final int FLAG_UNRECOGNISED_ADVICE = 1 << 3;
+    //bits 4-7 are reserved for EvaluationType and 8-31 for Advice, each constant's bit is fixed
+    //so flags persisted by one version read the same in any other
+    private static final int FIRST_EVALUATION_TYPE_BIT = 4;
+    private static final int LAST_EVALUATION_TYPE_BIT = 7;
+    private static final int FIRST_ADVICE_BIT = 8;
+    private static final int LAST_ADVICE_BIT = 31;
+
+    /**
+     * The evaluationType claim, a response can list more than one i.e. "BASIC,HARDWARE_BACKED"
+     */
+    public enum EvaluationType {
+        //never change or reuse a bit, only add new constants with the next free one
+        BASIC(4),
+        HARDWARE_BACKED(5);
+
+        private static final EvaluationType[] VALUES = values();
+
+        private final int flag;
+
+        EvaluationType(int bit) {
+            if (bit < FIRST_EVALUATION_TYPE_BIT || bit > LAST_EVALUATION_TYPE_BIT) {
+                throw new IllegalArgumentException("EvaluationType bit must be " + FIRST_EVALUATION_TYPE_BIT + "-" + LAST_EVALUATION_TYPE_BIT);
+            }
+            this.flag = 1 << bit;
+        }
+
+        /**
+         * @return this type's bit in {@link #getFlags()}
+         */
+        public int getFlag() {
+            return flag;
+        }
+
+        /**
+         * @param flags from {@link #getFlags()}
+         */
+        public static EnumSet<EvaluationType> fromFlags(int flags) {
+            EnumSet<EvaluationType> types = EnumSet.noneOf(EvaluationType.class);
+            for (EvaluationType type : VALUES) {
+                if ((flags & type.getFlag()) != 0) {
+                    types.add(type);
+                }
+            }
+            return types;
+        }
+    }
+
+    /**
+     * Values of the advice claim, suggestions for getting the device to pass future checks
+     */
+    public enum Advice {
+        //never change or reuse a bit, only add new constants with the next free one
+        LOCK_BOOTLOADER(8),
+        RESTORE_TO_FACTORY_ROM(9);
+
+        private static final Advice[] VALUES = values();
+
+        private final int flag;
+
+        Advice(int bit) {
+            if (bit < FIRST_ADVICE_BIT || bit > LAST_ADVICE_BIT) {
+                throw new IllegalArgumentException("Advice bit must be " + FIRST_ADVICE_BIT + "-" + LAST_ADVICE_BIT);
+            }
+            this.flag = 1 << bit;
+        }
+
+        /**
+         * @return this advice's bit in {@link #getFlags()}
+         */
+        public int getFlag() {
+            return flag;
+        }
+
+        /**
+         * @param flags from {@link #getFlags()}
+         */
+        public static EnumSet<Advice> fromFlags(int flags) {
+            EnumSet<Advice> advice = EnumSet.noneOf(Advice.class);
+            for (Advice value : VALUES) {
+                if ((flags & value.getFlag()) != 0) {
+                    advice.add(value);
+                }
+            }
+            return advice;
+        }
+    }
+
     private static final String TAG = SafetyNetResponse.class.getSimpleName();
     private String nonce;
     private long timestampMs;
     private String apkPackageName;
     private String[] apkCertificateDigestSha256;
     private String apkDigestSha256;
-    private boolean ctsProfileMatch;
-    private boolean basicIntegrity;
+    private int flags;
     private String evaluationType;
     private String advice;
 
@@ -89,7 +188,7 @@ public class SafetyNetResponse {
      * @return
      */
     public boolean isCtsProfileMatch() {
-        return ctsProfileMatch;
+        return (flags & FLAG_CTS_PROFILE_MATCH) != 0;
     }
 
     /**
@@ -98,7 +197,7 @@ public class SafetyNetResponse {
      * @return
      */
     public boolean isBasicIntegrity() {
-        return basicIntegrity;
+        return (flags & FLAG_BASIC_INTEGRITY) != 0;
     }
 
     /**
@@ -119,6 +218,38 @@ public class SafetyNetResponse {
         return advice;
     }
 
+    /**
+     * ctsProfileMatch, basicIntegrity, evaluation types and advice packed into one int, see the
+     * FLAG_ constants, {@link EvaluationType#getFlag()} and {@link Advice#getFlag()}
+     *
+     * @return
+     */
+    public int getFlags() {
+        return flags;
+    }
+
+    /**
+     * @return parsed from {@link #getEvaluationType()}, empty if none
+     */
+    public EnumSet<EvaluationType> getEvaluationTypes() {
+        return EvaluationType.fromFlags(flags);
+    }
+
+    public boolean hasEvaluationType(EvaluationType type) {
+        return (flags & type.getFlag()) != 0;
+    }
+
+    /**
+     * @return parsed from {@link #getAdvice()}, empty if none
+     */
+    public EnumSet<Advice> getAdviceSet() {
+        return Advice.fromFlags(flags);
+    }
+
+    public boolean hasAdvice(Advice advice) {
+        return (flags & advice.getFlag()) != 0;
+    }
+
     /**
      * Parse the JSON string into populated SafetyNetResponse object
      *
@@ -154,16 +285,17 @@ public class SafetyNetResponse {
                 response.apkPackageName = root.getString("apkPackageName");
             }
 
-            if (root.has("basicIntegrity")) {
-                response.basicIntegrity = root.getBoolean("basicIntegrity");
+            if (root.has("basicIntegrity") && root.getBoolean("basicIntegrity")) {
+                response.flags |= FLAG_BASIC_INTEGRITY;
             }
 
-            if (root.has("ctsProfileMatch")) {
-                response.ctsProfileMatch = root.getBoolean("ctsProfileMatch");
+            if (root.has("ctsProfileMatch") && root.getBoolean("ctsProfileMatch")) {
+                response.flags |= FLAG_CTS_PROFILE_MATCH;
             }
 
             if (root.has("evaluationType")) {
                 response.evaluationType = root.getString("evaluationType");
+                response.flags |= parseEvaluationTypeFlags(response.evaluationType);
             }
 
             if (root.has("timestampMs")) {
@@ -172,6 +304,7 @@ public class SafetyNetResponse {
 
             if (root.has("advice")) {
                 response.advice = root.getString("advice");
+                response.flags |= parseAdviceFlags(response.advice);
             }
 
             return response;
@@ -181,6 +314,44 @@ public class SafetyNetResponse {
         return null;
     }
 
+    private static int parseEvaluationTypeFlags(String evaluationType) {
+        int parsed = 0;
+        for (String value : evaluationType.split(",")) {
+            value = value.trim();
+            if (value.isEmpty()) {
+                continue;
+            }
+            int flag = FLAG_UNRECOGNISED_EVALUATION_TYPE;
+            for (EvaluationType type : EvaluationType.VALUES) {
+                if (type.name().equals(value)) {
+                    flag = type.getFlag();
+                    break;
+                }
+            }
+            parsed |= flag;
+        }
+        return parsed;
+    }
+
+    private static int parseAdviceFlags(String advice) {
+        int parsed = 0;
+        for (String value : advice.split(",")) {
+            value = value.trim();
+            if (value.isEmpty()) {
+                continue;
+            }
+            int flag = FLAG_UNRECOGNISED_ADVICE;
+            for (Advice known : Advice.VALUES) {
+                if (known.name().equals(value)) {
+                    flag = known.getFlag();
+                    break;
+                }
+            }
+            parsed |= flag;
+        }
+        return parsed;
+    }
+
 
     @Override
     public String toString() {
@@ -190,8 +361,8 @@ public class SafetyNetResponse {
                 ", apkPackageName='" + apkPackageName + '\'' +
                 ", apkCertificateDigestSha256=" + Arrays.toString(apkCertificateDigestSha256) +
                 ", apkDigestSha256='" + apkDigestSha256 + '\'' +
-                ", ctsProfileMatch=" + ctsProfileMatch +
-                ", basicIntegrity=" + basicIntegrity +
+                ", ctsProfileMatch=" + isCtsProfileMatch() +
+                ", basicIntegrity=" + isBasicIntegrity() +
                 ", evaluationType=" + evaluationType +
                 ", advice=" + advice +
                 '}';
@@ -0,0 +1,102 @@
+package com.scottyab.safetynet;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Outcome of a completed SafetyNet attestation, either a validated {@link SafetyNetResponse} or
+ * an error code (see the SafetyNetHelper error constants) and message.
+ * <p>
+ * Immutable so the same instance can be handed to every {@link SafetyNetHelper.VerdictListener}.
+ */
+public final class SafetyNetVerdict {
+
+    private final SafetyNetResponse response;
+    private final int errorCode;
+    private final String errorMessage;
+    private final long completedAtMs;
+    private final long sequence;
+
+    private SafetyNetVerdict(SafetyNetResponse response, int errorCode, String errorMessage, long completedAtMs, long sequence) {
+        this.response = response;
+        this.errorCode = errorCode;
+        this.errorMessage = errorMessage;
+        this.completedAtMs = completedAtMs;
+        this.sequence = sequence;
+    }
+
+    static SafetyNetVerdict success(SafetyNetResponse response) {
+        return new SafetyNetVerdict(response, 0, null, System.currentTimeMillis(), 0);
+    }
+
+    static SafetyNetVerdict error(int errorCode, String errorMessage) {
+        return new SafetyNetVerdict(null, errorCode, errorMessage, System.currentTimeMillis(), 0);
+    }
+
+    /**
+     * @param sequence assigned by the helper when publishing, greater than any it published before
+     * @return a copy of this verdict with the sequence set
+     */
+    SafetyNetVerdict withSequence(long sequence) {
+        return new SafetyNetVerdict(response, errorCode, errorMessage, completedAtMs, sequence);
+    }
+
+    /**
+     * @return true if the attestation completed and the response payload passed validation
+     */
+    public boolean isSuccess() {
+        return response != null;
+    }
+
+    /**
+     * @return the validated response or null if this is an error verdict
+     */
+    @Nullable
+    public SafetyNetResponse getResponse() {
+        return response;
+    }
+
+    public boolean isCtsProfileMatch() {
+        return response != null && response.isCtsProfileMatch();
+    }
+
+    public boolean isBasicIntegrity() {
+        return response != null && response.isBasicIntegrity();
+    }
+
+    /**
+     * @return one of the SafetyNetHelper error constants, 0 on success
+     */
+    public int getErrorCode() {
+        return errorCode;
+    }
+
+    @Nullable
+    public String getErrorMessage() {
+        return errorMessage;
+    }
+
+    /**
+     * @return device time the attestation completed
+     */
+    public long getCompletedAtMs() {
+        return completedAtMs;
+    }
+
+    /**
+     * @return order in which the helper published this verdict, 0 if never published
+     */
+    long getSequence() {
+        return sequence;
+    }
+
+    @Override
+    public String toString() {
+        return "SafetyNetVerdict{" +
+                "response=" + response +
+                ", errorCode=" + errorCode +
+                ", errorMessage='" + errorMessage + '\'' +
+                ", completedAtMs=" + completedAtMs +
+                ", sequence=" + sequence +
+                '}';
+    }
+}
@@ -4,19 +4,21 @@ import android.content.Context;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.Signature;
-import android.text.TextUtils;
+import android.content.pm.SigningInfo;
+import android.os.Build;
 import android.util.Base64;
 import android.util.Log;
 
-import java.io.ByteArrayInputStream;
-import java.io.InputStream;
-import java.io.UnsupportedEncodingException;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.security.cert.CertificateFactory;
-import java.security.cert.X509Certificate;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Useful but separate utils used by the safetynet helper
@@ -24,87 +26,235 @@ import java.util.List;
 public class Utils {
     private static final String TAG = Utils.class.getSimpleName();
     public static final String SHA_256 = "SHA-256";
+    private static final String SHA_1 = "SHA-1";
 
-    public static String getSigningKeyFingerprint(Context ctx) {
-        String result = null;
-        try {
-            byte[] certEncoded = getSigningKeyCertificate(ctx);
-            MessageDigest md = MessageDigest.getInstance("SHA1");
-            byte[] publicKey = md.digest(certEncoded);
-            result = byte2HexFormatted(publicKey);
-        } catch (Exception e) {
-            Log.w(TAG, e);
-        }
-        return result;
-    }
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
 
     /**
-     * Gets the encoded representation of the first signing certificate used to sign current APK
-     *
-     * @param ctx
-     * @return
+     * Inspected signing certificates by package name, see {@link #getSigningCertificates(Context, String)}
      */
-    private static byte[] getSigningKeyCertificate(Context ctx) {
-        try {
-            PackageManager pm = ctx.getPackageManager();
-            String packageName = ctx.getPackageName();
-            int flags = PackageManager.GET_SIGNATURES;
-            PackageInfo packageInfo = pm.getPackageInfo(packageName, flags);
-            Signature[] signatures = packageInfo.signatures;
-
-            if (signatures != null && signatures.length >= 1) {
-                //takes just the first signature, TODO: handle multi signed apks
-                byte[] cert = signatures[0].toByteArray();
-                InputStream input = new ByteArrayInputStream(cert);
-                CertificateFactory cf = CertificateFactory.getInstance("X509");
-                X509Certificate c = (X509Certificate) cf.generateCertificate(input);
-                return c.getEncoded();
+    private static final ConcurrentHashMap<String, SigningCertificates> SIGNING_CERTIFICATES = new ConcurrentHashMap<>();
 
-            }
-        } catch (Exception e) {
-            Log.w(TAG, e);
+    /**
+     * Digests of the certificates a package is signed with, read from the PackageManager once and
+     * kept until the package's lastUpdateTime changes.
+     * <p>
+     * {@link #getSha256Digests()} and {@link #getSha1Fingerprints()} are the legacy
+     * {@code PackageInfo.signatures} view, which for a rotated key (API 28+) is the original
+     * certificate. {@link #getCurrentSha256Digests()} and {@link #getPastSha256Digests()} split the
+     * signing history into the current signer and the ones it replaced.
+     */
+    public static final class SigningCertificates {
+        private final long lastUpdateTime;
+        private final boolean multipleSigners;
+        private final List<String> sha256Digests;
+        private final List<String> sha1Fingerprints;
+        private final List<String> currentSha256Digests;
+        private final List<String> pastSha256Digests;
+
+        SigningCertificates(long lastUpdateTime, boolean multipleSigners, List<String> sha256Digests,
+                            List<String> sha1Fingerprints, List<String> currentSha256Digests,
+                            List<String> pastSha256Digests) {
+            this.lastUpdateTime = lastUpdateTime;
+            this.multipleSigners = multipleSigners;
+            this.sha256Digests = Collections.unmodifiableList(sha256Digests);
+            this.sha1Fingerprints = Collections.unmodifiableList(sha1Fingerprints);
+            this.currentSha256Digests = Collections.unmodifiableList(currentSha256Digests);
+            this.pastSha256Digests = Collections.unmodifiableList(pastSha256Digests);
+        }
+
+        public long getLastUpdateTime() {
+            return lastUpdateTime;
+        }
+
+        /**
+         * @return true if the APK is signed by more than one signer (rather than a rotated key)
+         */
+        public boolean hasMultipleSigners() {
+            return multipleSigners;
+        }
+
+        /**
+         * SHA-256 of each certificate in {@code PackageInfo.signatures}, what the helper compares
+         * the response's apkCertificateDigestSha256 against. For a rotated key this is the original
+         * certificate, not the current one.
+         *
+         * @return BASE64 encoded
+         */
+        public List<String> getSha256Digests() {
+            return sha256Digests;
+        }
+
+        /**
+         * SHA-1 of each certificate in {@code PackageInfo.signatures}
+         *
+         * @return hex formatted i.e. "AB:CD:..."
+         */
+        public List<String> getSha1Fingerprints() {
+            return sha1Fingerprints;
+        }
+
+        /**
+         * SHA-256 of each certificate the APK is currently signed with, differs from
+         * {@link #getSha256Digests()} only if the key was rotated (API 28+)
+         *
+         * @return BASE64 encoded
+         */
+        public List<String> getCurrentSha256Digests() {
+            return currentSha256Digests;
+        }
+
+        /**
+         * SHA-256 of certificates the package was signed with before key rotation (API 28+),
+         * oldest first, empty if the key was never rotated
+         *
+         * @return BASE64 encoded
+         */
+        public List<String> getPastSha256Digests() {
+            return pastSha256Digests;
         }
-        return null;
     }
 
-    private static String byte2HexFormatted(byte[] arr) {
-        StringBuilder str = new StringBuilder(arr.length * 2);
-        for (int i = 0; i < arr.length; i++) {
-            String h = Integer.toHexString(arr[i]);
-            int l = h.length();
-            if (l == 1) h = "0" + h;
-            if (l > 2) h = h.substring(l - 2, l);
-            str.append(h.toUpperCase());
-            if (i < (arr.length - 1)) str.append(':');
-        }
-        return str.toString();
+    /**
+     * @return SHA-1 fingerprint of the first signing certificate of the current APK, hex formatted
+     */
+    public static String getSigningKeyFingerprint(Context ctx) {
+        final List<String> fingerprints = getSigningKeyFingerprints(ctx);
+        return fingerprints.isEmpty() ? null : fingerprints.get(0);
+    }
+
+    /**
+     * @return SHA-1 fingerprints of all signing certificates of the current APK, hex formatted
+     */
+    public static List<String> getSigningKeyFingerprints(Context ctx) {
+        final SigningCertificates certificates = getSigningCertificates(ctx, ctx.getPackageName());
+        return certificates == null ? Collections.<String>emptyList() : certificates.getSha1Fingerprints();
     }
 
     public static List<String> calcApkCertificateDigests(Context context, String packageName) {
-        List<String> encodedSignatures = new ArrayList<String>();
+        final SigningCertificates certificates = getSigningCertificates(context, packageName);
+        return certificates == null ? new ArrayList<String>() : new ArrayList<>(certificates.getSha256Digests());
+    }
+
+    /**
+     * Inspects the package's signing certificates, memoised per package.
+     * <p>
+     * Our own package can't be updated without the process being restarted so once cached it's
+     * returned without any PackageManager call. For other packages only the (cheap, no signatures)
+     * lastUpdateTime is fetched to check the cached entry is still current.
+     *
+     * @return the signing certificates or null if the package isn't found
+     */
+    @Nullable
+    public static SigningCertificates getSigningCertificates(Context context, String packageName) {
+        final SigningCertificates cached = SIGNING_CERTIFICATES.get(packageName);
+        final PackageManager pm = context.getPackageManager();
+        if (cached != null) {
+            if (packageName.equals(context.getPackageName())) {
+                return cached;
+            }
+            try {
+                if (pm.getPackageInfo(packageName, 0).lastUpdateTime == cached.getLastUpdateTime()) {
+                    return cached;
+                }
+            } catch (PackageManager.NameNotFoundException e) {
+                SIGNING_CERTIFICATES.remove(packageName);
+                return null;
+            }
+        }
+
+        final SigningCertificates inspected = inspectSigningCertificates(pm, packageName);
+        if (inspected != null) {
+            SIGNING_CERTIFICATES.put(packageName, inspected);
+        }
+        return inspected;
+    }
 
-        // Get signatures from package manager
-        PackageManager pm = context.getPackageManager();
-        PackageInfo packageInfo;
+    @Nullable
+    @SuppressWarnings("deprecation")
+    private static SigningCertificates inspectSigningCertificates(PackageManager pm, String packageName) {
+        final PackageInfo packageInfo;
+        final Signature[] signers;
+        final Signature[] currentSigners;
+        final Signature[] pastSigners;
+        final boolean multipleSigners;
         try {
-            packageInfo = pm.getPackageInfo(packageName, PackageManager.GET_SIGNATURES);
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
+                //GET_SIGNATURES as well so signatures keeps its pre-rotation meaning, one call for both
+                packageInfo = pm.getPackageInfo(packageName, PackageManager.GET_SIGNATURES | PackageManager.GET_SIGNING_CERTIFICATES);
+                final SigningInfo signingInfo = packageInfo.signingInfo;
+                if (signingInfo == null) {
+                    return null;
+                }
+                signers = packageInfo.signatures;
+                multipleSigners = signingInfo.hasMultipleSigners();
+                currentSigners = signingInfo.getApkContentsSigners();
+                if (!multipleSigners && signingInfo.hasPastSigningCertificates()) {
+                    //history is oldest first and ends with the current signer
+                    final Signature[] history = signingInfo.getSigningCertificateHistory();
+                    pastSigners = Arrays.copyOf(history, history.length - 1);
+                } else {
+                    pastSigners = new Signature[0];
+                }
+            } else {
+                packageInfo = pm.getPackageInfo(packageName, PackageManager.GET_SIGNATURES);
+                signers = packageInfo.signatures;
+                currentSigners = signers;
+                multipleSigners = signers != null && signers.length > 1;
+                pastSigners = new Signature[0];
+            }
         } catch (PackageManager.NameNotFoundException e) {
-            e.printStackTrace();
-            return encodedSignatures;
+            Log.w(TAG, "package not found: " + packageName, e);
+            return null;
+        }
+        if (signers == null || currentSigners == null) {
+            return null;
         }
-        Signature[] signatures = packageInfo.signatures;
 
-        // Calculate b64 encoded sha256 hash of signatures
-        for (Signature signature : signatures) {
-            try {
-                MessageDigest md = MessageDigest.getInstance(SHA_256);
-                md.update(signature.toByteArray());
-                byte[] digest = md.digest();
-                encodedSignatures.add(Base64.encodeToString(digest, Base64.NO_WRAP));
-            } catch (NoSuchAlgorithmException e) {
-                e.printStackTrace();
+        final MessageDigest sha1;
+        final MessageDigest sha256;
+        try {
+            sha1 = MessageDigest.getInstance(SHA_1);
+            sha256 = MessageDigest.getInstance(SHA_256);
+        } catch (NoSuchAlgorithmException e) {
+            Log.w(TAG, e);
+            return null;
+        }
+
+        final List<String> sha256Digests = new ArrayList<>(signers.length);
+        final List<String> sha1Fingerprints = new ArrayList<>(signers.length);
+        for (Signature signer : signers) {
+            //Signature.toByteArray() is the DER encoded certificate, no need to parse it as X.509
+            final byte[] certificate = signer.toByteArray();
+            sha256Digests.add(Base64.encodeToString(sha256.digest(certificate), Base64.NO_WRAP));
+            sha1Fingerprints.add(byte2HexFormatted(sha1.digest(certificate)));
+        }
+        final List<String> currentSha256Digests = currentSigners == signers ? sha256Digests : sha256Digests(sha256, currentSigners);
+        return new SigningCertificates(packageInfo.lastUpdateTime, multipleSigners, sha256Digests, sha1Fingerprints,
+                currentSha256Digests, sha256Digests(sha256, pastSigners));
+    }
+
+    private static List<String> sha256Digests(MessageDigest sha256, Signature[] signers) {
+        final List<String> digests = new ArrayList<>(signers.length);
+        for (Signature signer : signers) {
+            digests.add(Base64.encodeToString(sha256.digest(signer.toByteArray()), Base64.NO_WRAP));
+        }
+        return digests;
+    }
+
+    @NonNull
+    private static String byte2HexFormatted(byte[] arr) {
+        if (arr.length == 0) {
+            return "";
+        }
+        final char[] hex = new char[arr.length * 3 - 1];
+        for (int i = 0, j = 0; i < arr.length; i++) {
+            if (i > 0) {
+                hex[j++] = ':';
             }
+            hex[j++] = HEX_DIGITS[(arr[i] >> 4) & 0x0F];
+            hex[j++] = HEX_DIGITS[arr[i] & 0x0F];
         }
-        return encodedSignatures;
+        return new String(hex);
     }
 }
@@ -0,0 +1,88 @@
+package com.scottyab.safetynet;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Checks the encoder against the golden vectors in attestation-envelope-vectors.properties, the
+ * same bytes the server's AttestationEnvelopeDecoderTest decodes
+ */
+@RunWith(RobolectricTestRunner.class)
+public class AttestationEnvelopeTest {
+
+    private static Properties vectors;
+
+    @BeforeClass
+    public static void loadVectors() throws IOException {
+        vectors = new Properties();
+        try (InputStream in = AttestationEnvelopeTest.class.getResourceAsStream("/attestation-envelope-vectors.properties")) {
+            vectors.load(in);
+        }
+    }
+
+    private static long vectorChainId() {
+        return AttestationEnvelope.parseChainId(vectors.getProperty("chainId"));
+    }
+
+    @Test
+    public void encodesVerbatimVector() {
+        final byte[] envelope = AttestationEnvelope.encode(vectors.getProperty("jws.nonCanonical"), Collections.<Long>emptySet());
+
+        assertEquals(vectors.getProperty("envelope.verbatim"), hex(envelope));
+    }
+
+    @Test
+    public void encodesDecodedVector() {
+        final byte[] envelope = AttestationEnvelope.encode(vectors.getProperty("jws"), Collections.<Long>emptySet());
+
+        assertEquals(vectors.getProperty("envelope.decoded"), hex(envelope));
+    }
+
+    @Test
+    public void encodesChainRefVector() {
+        final byte[] envelope = AttestationEnvelope.encode(vectors.getProperty("jws"), Collections.singleton(vectorChainId()));
+
+        assertEquals(vectors.getProperty("envelope.chainRef"), hex(envelope));
+    }
+
+    @Test
+    public void unknownChainIdSendsFullChain() {
+        final byte[] envelope = AttestationEnvelope.encode(vectors.getProperty("jws"), Collections.singleton(vectorChainId() + 1));
+
+        assertEquals(vectors.getProperty("envelope.decoded"), hex(envelope));
+    }
+
+    @Test
+    public void chainIdMatchesVector() {
+        assertEquals(Long.valueOf(vectorChainId()), AttestationEnvelope.chainId(vectors.getProperty("jws")));
+    }
+
+    @Test
+    public void chainIdNullWithoutX5c() {
+        //{"alg":"RS256"}
+        assertNull(AttestationEnvelope.chainId("eyJhbGciOiJSUzI1NiJ9.e30.AAEC"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNonCompactJws() {
+        AttestationEnvelope.encode("not-a-jws", Collections.<Long>emptySet());
+    }
+
+    private static String hex(byte[] bytes) {
+        final StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+}
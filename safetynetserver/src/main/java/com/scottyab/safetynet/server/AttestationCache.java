@@ -0,0 +1,194 @@
+package com.scottyab.safetynet.server;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Bounded cache of verification results keyed by the SHA-256 of the raw token, so a retried or
+ * fanned out token costs one hash and one lookup instead of a full signature and chain check.
+ * <p>
+ * Entries are evicted by the token's {@code timestampMs}: once a token is older than
+ * {@code maxTokenAgeMs} it's dropped (the verifier would reject it as stale anyway), and when the
+ * cache is over capacity the oldest tokens go first.
+ * <p>
+ * Only valid verdicts are cached. A rejected token's claims, timestampMs included, may come from a
+ * payload whose signature was never checked, so trusting them for eviction would let anyone fill
+ * the cache with entries that never expire.
+ * <p>
+ * The cache only stores what's idempotent about a token. Nonce redemption is always done against
+ * the {@link NonceStore}, on hits as well as misses, so evicting or hitting an entry can never
+ * let a token be replayed. Use one cache per verifier configuration, a cached verdict is only
+ * valid for the verifier that produced it.
+ */
+public final class AttestationCache {
+
+    /**
+     * Does the full, expensive, verification of a token. A verdict must only be valid if the
+     * token's signature and certificate chain checked out.
+     */
+    public interface Verifier {
+        AttestationVerdict verify(String jws);
+    }
+
+    private static final ThreadLocal<MessageDigest> SHA_256 = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    private final ConcurrentHashMap<TokenDigest, AttestationVerdict> verdicts;
+    private final AtomicBoolean evicting = new AtomicBoolean();
+    private final int maxEntries;
+    private final long maxTokenAgeMs;
+
+    /**
+     * @param maxEntries    upper bound on cached verdicts
+     * @param maxTokenAgeMs should not exceed the verifier's own timestamp freshness window
+     */
+    public AttestationCache(int maxEntries, long maxTokenAgeMs) {
+        if (maxEntries <= 0 || maxTokenAgeMs <= 0) {
+            throw new IllegalArgumentException("maxEntries and maxTokenAgeMs must be positive");
+        }
+        this.maxEntries = maxEntries;
+        this.maxTokenAgeMs = maxTokenAgeMs;
+        this.verdicts = new ConcurrentHashMap<>(Math.min(maxEntries, 1 << 16));
+    }
+
+    /**
+     * Verifies the token, or returns the cached verdict. Doesn't redeem the nonce, use this where
+     * a service only needs to know the token is genuine.
+     */
+    public AttestationVerdict verify(String jws, Verifier verifier) {
+        final TokenDigest key = TokenDigest.of(jws);
+        final long now = System.currentTimeMillis();
+
+        AttestationVerdict verdict = verdicts.get(key);
+        if (verdict != null) {
+            if (!isExpired(verdict, now)) {
+                return verdict;
+            }
+            verdicts.remove(key, verdict);
+        }
+
+        verdict = verifier.verify(jws);
+        //rejected tokens may carry a forged timestampMs, and stale ones aren't worth a slot
+        if (verdict.isValid() && !isExpired(verdict, now)) {
+            verdicts.put(key, verdict);
+            if (verdicts.size() > maxEntries) {
+                evict(now);
+            }
+        }
+        return verdict;
+    }
+
+    /**
+     * As {@link #verify(String, Verifier)} but also redeems the token's nonce, so only the first
+     * call for a given nonce is valid. Use this where the verdict grants something, i.e. a login.
+     */
+    public AttestationVerdict verifyAndRedeem(String jws, Verifier verifier, NonceStore nonceStore) {
+        final AttestationVerdict verdict = verify(jws, verifier);
+        if (verdict.isValid() && !nonceStore.redeem(verdict.getNonce())) {
+            return verdict.reject("nonce unknown, expired or already redeemed");
+        }
+        return verdict;
+    }
+
+    public int size() {
+        return verdicts.size();
+    }
+
+    private boolean isExpired(AttestationVerdict verdict, long now) {
+        return verdict.getTimestampMs() + maxTokenAgeMs < now;
+    }
+
+    /**
+     * Drops expired tokens then, if still over capacity, the oldest down to 90% of capacity so
+     * this isn't run on every put. Only one thread evicts at a time, others carry on.
+     */
+    private void evict(long now) {
+        if (!evicting.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            for (Iterator<AttestationVerdict> it = verdicts.values().iterator(); it.hasNext(); ) {
+                if (isExpired(it.next(), now)) {
+                    it.remove();
+                }
+            }
+            final int target = maxEntries - maxEntries / 10;
+            if (verdicts.size() <= target) {
+                return;
+            }
+            final List<Map.Entry<TokenDigest, AttestationVerdict>> entries = new ArrayList<>(verdicts.entrySet());
+            Collections.sort(entries, (a, b) -> Long.compare(a.getValue().getTimestampMs(), b.getValue().getTimestampMs()));
+            for (int i = 0, excess = verdicts.size() - target; i < entries.size() && excess > 0; i++) {
+                if (verdicts.remove(entries.get(i).getKey(), entries.get(i).getValue())) {
+                    excess--;
+                }
+            }
+        } finally {
+            evicting.set(false);
+        }
+    }
+
+    /**
+     * SHA-256 of the raw token held as 4 longs, cheaper to hash and compare than a byte[] or String
+     */
+    private static final class TokenDigest {
+        private final long a;
+        private final long b;
+        private final long c;
+        private final long d;
+
+        private TokenDigest(long a, long b, long c, long d) {
+            this.a = a;
+            this.b = b;
+            this.c = c;
+            this.d = d;
+        }
+
+        static TokenDigest of(String jws) {
+            final byte[] digest = SHA_256.get().digest(jws.getBytes(StandardCharsets.US_ASCII));
+            return new TokenDigest(longAt(digest, 0), longAt(digest, 8), longAt(digest, 16), longAt(digest, 24));
+        }
+
+        private static long longAt(byte[] bytes, int offset) {
+            long value = 0;
+            for (int i = offset; i < offset + 8; i++) {
+                value = (value << 8) | (bytes[i] & 0xFF);
+            }
+            return value;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof TokenDigest)) {
+                return false;
+            }
+            TokenDigest other = (TokenDigest) o;
+            return a == other.a && b == other.b && c == other.c && d == other.d;
+        }
+
+        @Override
+        public int hashCode() {
+            //already uniformly distributed
+            return (int) (a ^ (a >>> 32));
+        }
+    }
+}
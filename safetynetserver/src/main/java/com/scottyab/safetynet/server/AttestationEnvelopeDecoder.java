@@ -0,0 +1,210 @@
+package com.scottyab.safetynet.server;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Server side counterpart of the app's {@code com.scottyab.safetynet.AttestationEnvelope}, turns
+ * an uploaded envelope back into the exact compact JWS SafetyNet produced so it can be verified as
+ * normal.
+ * <p>
+ * Certificate chains are learnt from full tokens ({@link #learnChain(String)}) or registered up
+ * front; the ids from {@link #getKnownChainIds()} can be handed to apps so they know which chains
+ * they may leave out.
+ */
+public final class AttestationEnvelopeDecoder {
+
+    static final byte MAGIC = 'S';
+    static final byte VERSION = 1;
+    static final byte FORMAT_VERBATIM = 0;
+    static final byte FORMAT_DECODED = 1;
+    static final byte FORMAT_CHAIN_REF = 2;
+
+    private static final byte[] X5C_KEY = "\"x5c\"".getBytes(StandardCharsets.UTF_8);
+
+    private final Base64.Encoder base64Url = Base64.getUrlEncoder().withoutPadding();
+    private final ConcurrentHashMap<Long, byte[]> knownChains = new ConcurrentHashMap<>();
+
+    /**
+     * Remembers the x5c chain of a full, already verified, token so later envelopes may
+     * reference it by id.
+     *
+     * @return the chain id or null if the token has no x5c chain
+     */
+    public Long learnChain(String jws) {
+        final String[] segments = jws.split("\\.", -1);
+        if (segments.length != 3) {
+            throw new IllegalArgumentException("not a compact JWS");
+        }
+        final byte[] header = Base64.getUrlDecoder().decode(segments[0]);
+        final int[] span = findX5cSpan(header);
+        return span == null ? null : registerChain(Arrays.copyOfRange(header, span[0], span[1]));
+    }
+
+    /**
+     * @param x5cJson exact JSON text of the x5c array, brackets included
+     * @return the chain id
+     */
+    public long registerChain(byte[] x5cJson) {
+        final long id = chainId(x5cJson);
+        knownChains.putIfAbsent(id, x5cJson.clone());
+        return id;
+    }
+
+    public Set<Long> getKnownChainIds() {
+        return Collections.unmodifiableSet(knownChains.keySet());
+    }
+
+    /**
+     * @param envelope as uploaded by the app
+     * @return the original compact JWS, byte for byte
+     * @throws IllegalArgumentException if the envelope is malformed or references an unknown chain
+     */
+    public String decode(byte[] envelope) {
+        final Reader in = new Reader(envelope);
+        if (in.readByte() != MAGIC || in.readByte() != VERSION) {
+            throw new IllegalArgumentException("not a version " + VERSION + " attestation envelope");
+        }
+        final byte format = in.readByte();
+        final String jws;
+        switch (format) {
+            case FORMAT_VERBATIM:
+                jws = ascii(in.readBytes()) + '.' + ascii(in.readBytes()) + '.' + ascii(in.readBytes());
+                break;
+            case FORMAT_DECODED:
+                jws = join(in.readBytes(), in.readBytes(), in.readBytes());
+                break;
+            case FORMAT_CHAIN_REF:
+                final byte[] prefix = in.readBytes();
+                final byte[] suffix = in.readBytes();
+                final long id = in.readLong();
+                final byte[] chain = knownChains.get(id);
+                if (chain == null) {
+                    throw new IllegalArgumentException("unknown certificate chain id " + id);
+                }
+                final byte[] header = new byte[prefix.length + chain.length + suffix.length];
+                System.arraycopy(prefix, 0, header, 0, prefix.length);
+                System.arraycopy(chain, 0, header, prefix.length, chain.length);
+                System.arraycopy(suffix, 0, header, prefix.length + chain.length, suffix.length);
+                jws = join(header, in.readBytes(), in.readBytes());
+                break;
+            default:
+                throw new IllegalArgumentException("unknown envelope format " + format);
+        }
+        if (in.remaining() != 0) {
+            throw new IllegalArgumentException("trailing bytes in attestation envelope");
+        }
+        return jws;
+    }
+
+    private String join(byte[] header, byte[] payload, byte[] signature) {
+        return base64Url.encodeToString(header) + '.' + base64Url.encodeToString(payload) + '.' + base64Url.encodeToString(signature);
+    }
+
+    private static String ascii(byte[] bytes) {
+        return new String(bytes, StandardCharsets.US_ASCII);
+    }
+
+    static long chainId(byte[] x5cJson) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-256").digest(x5cJson);
+            long id = 0;
+            for (int i = 0; i < 8; i++) {
+                id = (id << 8) | (digest[i] & 0xFF);
+            }
+            return id;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Same rule as the app side encoder: the x5c member's array, closed by the first ']'.
+     */
+    static int[] findX5cSpan(byte[] headerJson) {
+        outer:
+        for (int i = 0; i <= headerJson.length - X5C_KEY.length; i++) {
+            for (int k = 0; k < X5C_KEY.length; k++) {
+                if (headerJson[i + k] != X5C_KEY[k]) {
+                    continue outer;
+                }
+            }
+            int pos = skipWhitespace(headerJson, i + X5C_KEY.length);
+            if (pos >= headerJson.length || headerJson[pos] != ':') {
+                continue;
+            }
+            pos = skipWhitespace(headerJson, pos + 1);
+            if (pos >= headerJson.length || headerJson[pos] != '[') {
+                return null;
+            }
+            for (int end = pos + 1; end < headerJson.length; end++) {
+                if (headerJson[end] == ']') {
+                    return new int[]{pos, end + 1};
+                }
+            }
+            return null;
+        }
+        return null;
+    }
+
+    private static int skipWhitespace(byte[] json, int pos) {
+        while (pos < json.length && (json[pos] == ' ' || json[pos] == '\t' || json[pos] == '\n' || json[pos] == '\r')) {
+            pos++;
+        }
+        return pos;
+    }
+
+    private static final class Reader {
+        private final byte[] buf;
+        private int pos;
+
+        Reader(byte[] buf) {
+            this.buf = buf;
+        }
+
+        byte readByte() {
+            if (pos >= buf.length) {
+                throw new IllegalArgumentException("truncated attestation envelope");
+            }
+            return buf[pos++];
+        }
+
+        byte[] readBytes() {
+            int length = 0;
+            for (int shift = 0; ; shift += 7) {
+                if (shift > 28) {
+                    throw new IllegalArgumentException("malformed length in attestation envelope");
+                }
+                final byte b = readByte();
+                length |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    break;
+                }
+            }
+            if (length < 0 || length > buf.length - pos) {
+                throw new IllegalArgumentException("truncated attestation envelope");
+            }
+            final byte[] bytes = Arrays.copyOfRange(buf, pos, pos + length);
+            pos += length;
+            return bytes;
+        }
+
+        long readLong() {
+            long value = 0;
+            for (int i = 0; i < 8; i++) {
+                value = (value << 8) | (readByte() & 0xFF);
+            }
+            return value;
+        }
+
+        int remaining() {
+            return buf.length - pos;
+        }
+    }
+}
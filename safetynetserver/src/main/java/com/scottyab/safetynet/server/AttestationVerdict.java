@@ -0,0 +1,91 @@
+package com.scottyab.safetynet.server;
+
+/**
+ * Result of verifying a SafetyNet attestation token on the server. Immutable so one instance can
+ * be shared by every caller that gets it from the {@link AttestationCache}.
+ */
+public final class AttestationVerdict {
+
+    private final boolean valid;
+    private final String reason;
+    private final String nonce;
+    private final long timestampMs;
+    private final String apkPackageName;
+    private final boolean ctsProfileMatch;
+    private final boolean basicIntegrity;
+
+    AttestationVerdict(boolean valid, String reason, String nonce, long timestampMs, String apkPackageName,
+                       boolean ctsProfileMatch, boolean basicIntegrity) {
+        this.valid = valid;
+        this.reason = reason;
+        this.nonce = nonce;
+        this.timestampMs = timestampMs;
+        this.apkPackageName = apkPackageName;
+        this.ctsProfileMatch = ctsProfileMatch;
+        this.basicIntegrity = basicIntegrity;
+    }
+
+    /**
+     * @param reason why the token was rejected
+     */
+    public static AttestationVerdict invalid(String reason) {
+        return new AttestationVerdict(false, reason, null, 0, null, false, false);
+    }
+
+    /**
+     * @return a copy of this verdict rejected for the given reason, keeping the claims for logging
+     */
+    public AttestationVerdict reject(String reason) {
+        return new AttestationVerdict(false, reason, nonce, timestampMs, apkPackageName, ctsProfileMatch, basicIntegrity);
+    }
+
+    /**
+     * @return true if the signature, certificate chain and claims all checked out
+     */
+    public boolean isValid() {
+        return valid;
+    }
+
+    /**
+     * @return why the token was rejected, null if valid
+     */
+    public String getReason() {
+        return reason;
+    }
+
+    /**
+     * @return BASE64 encoded nonce from the payload
+     */
+    public String getNonce() {
+        return nonce;
+    }
+
+    public long getTimestampMs() {
+        return timestampMs;
+    }
+
+    public String getApkPackageName() {
+        return apkPackageName;
+    }
+
+    public boolean isCtsProfileMatch() {
+        return ctsProfileMatch;
+    }
+
+    public boolean isBasicIntegrity() {
+        return basicIntegrity;
+    }
+
+    @Override
+    public String toString() {
+        return "AttestationVerdict{" +
+                "valid=" + valid +
+                ", reason='" + reason + '\'' +
+                ", nonce='" + nonce + '\'' +
+                ", timestampMs=" + timestampMs +
+                ", apkPackageName='" + apkPackageName + '\'' +
+                ", ctsProfileMatch=" + ctsProfileMatch +
+                ", basicIntegrity=" + basicIntegrity +
+                '}';
+    }
+}
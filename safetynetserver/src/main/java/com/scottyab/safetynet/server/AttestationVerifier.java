@@ -0,0 +1,202 @@
+package com.scottyab.safetynet.server;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.Signature;
+import java.security.cert.CertPathValidator;
+import java.security.cert.CertificateFactory;
+import java.security.cert.PKIXParameters;
+import java.security.cert.TrustAnchor;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.naming.InvalidNameException;
+import javax.naming.ldap.LdapName;
+import javax.naming.ldap.Rdn;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509TrustManager;
+
+/**
+ * Offline verification of a SafetyNet attestation JWS, the server side checks the app's
+ * {@code validateSafetyNetResponsePayload} recommends:
+ * <ul>
+ * <li>the x5c certificate chain is valid up to a trusted root and issued to attest.android.com</li>
+ * <li>the RS256 signature verifies with the leaf certificate</li>
+ * <li>the payload is for the expected app and certificate digests, and is fresh</li>
+ * </ul>
+ * The nonce isn't checked here, that's redeemed against the {@link NonceStore} so verdicts can be
+ * cached (see {@link AttestationCache#verifyAndRedeem}).
+ */
+public final class AttestationVerifier implements AttestationCache.Verifier {
+
+    public static final String ATTESTATION_HOSTNAME = "attest.android.com";
+
+    private final Set<TrustAnchor> trustAnchors;
+    private final String expectedPackageName;
+    private final Set<String> expectedCertDigests;
+    private final long maxTokenAgeMs;
+    private final ThreadLocal<CertificateFactory> certificateFactory = ThreadLocal.withInitial(() -> {
+        try {
+            return CertificateFactory.getInstance("X.509");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    /**
+     * @param trustAnchors        roots the x5c chain must lead to, i.e. {@link #systemTrustAnchors()}
+     * @param expectedPackageName the app's package name
+     * @param expectedCertDigests BASE64 SHA-256 digests of the app's signing certificates, empty to skip the check
+     * @param maxTokenAgeMs       how old (or how far in the future) the payload timestampMs may be
+     */
+    public AttestationVerifier(Set<TrustAnchor> trustAnchors, String expectedPackageName,
+                               Collection<String> expectedCertDigests, long maxTokenAgeMs) {
+        if (trustAnchors.isEmpty()) {
+            throw new IllegalArgumentException("trustAnchors must not be empty");
+        }
+        this.trustAnchors = Collections.unmodifiableSet(new HashSet<>(trustAnchors));
+        this.expectedPackageName = expectedPackageName;
+        this.expectedCertDigests = Collections.unmodifiableSet(new HashSet<>(expectedCertDigests));
+        this.maxTokenAgeMs = maxTokenAgeMs;
+    }
+
+    /**
+     * @return the JVM's default trusted CAs, which include the roots Google issues attest.android.com from
+     */
+    public static Set<TrustAnchor> systemTrustAnchors() {
+        try {
+            final TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            tmf.init((KeyStore) null);
+            final Set<TrustAnchor> anchors = new HashSet<>();
+            for (TrustManager trustManager : tmf.getTrustManagers()) {
+                if (trustManager instanceof X509TrustManager) {
+                    for (X509Certificate ca : ((X509TrustManager) trustManager).getAcceptedIssuers()) {
+                        anchors.add(new TrustAnchor(ca, null));
+                    }
+                }
+            }
+            return anchors;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("unable to load the system trust anchors", e);
+        }
+    }
+
+    @Override
+    public AttestationVerdict verify(String jws) {
+        final String[] segments = jws.split("\\.", -1);
+        if (segments.length != 3) {
+            return AttestationVerdict.invalid("not a compact JWS");
+        }
+
+        final Base64.Decoder base64Url = Base64.getUrlDecoder();
+        final Map<String, Object> header;
+        final Map<String, Object> payload;
+        final byte[] signature;
+        try {
+            header = Json.parseObject(new String(base64Url.decode(segments[0]), StandardCharsets.UTF_8));
+            payload = Json.parseObject(new String(base64Url.decode(segments[1]), StandardCharsets.UTF_8));
+            signature = base64Url.decode(segments[2]);
+        } catch (IllegalArgumentException e) {
+            return AttestationVerdict.invalid("malformed JWS: " + e.getMessage());
+        }
+
+        final AttestationVerdict claims = readClaims(payload);
+
+        if (!"RS256".equals(header.get("alg"))) {
+            return claims.reject("unsupported alg " + header.get("alg"));
+        }
+
+        final X509Certificate leaf;
+        try {
+            leaf = verifyCertificateChain(header.get("x5c"));
+        } catch (GeneralSecurityException | IllegalArgumentException e) {
+            return claims.reject("certificate chain invalid: " + e.getMessage());
+        }
+        if (!ATTESTATION_HOSTNAME.equals(commonName(leaf))) {
+            return claims.reject("certificate not issued to " + ATTESTATION_HOSTNAME);
+        }
+
+        try {
+            final Signature rs256 = Signature.getInstance("SHA256withRSA");
+            rs256.initVerify(leaf.getPublicKey());
+            rs256.update((segments[0] + '.' + segments[1]).getBytes(StandardCharsets.US_ASCII));
+            if (!rs256.verify(signature)) {
+                return claims.reject("signature does not verify");
+            }
+        } catch (GeneralSecurityException e) {
+            return claims.reject("signature could not be verified: " + e.getMessage());
+        }
+
+        return validateClaims(claims, payload);
+    }
+
+    private X509Certificate verifyCertificateChain(Object x5c) throws GeneralSecurityException {
+        if (!(x5c instanceof List) || ((List<?>) x5c).isEmpty()) {
+            throw new IllegalArgumentException("missing x5c");
+        }
+        final CertificateFactory factory = certificateFactory.get();
+        final List<X509Certificate> chain = new ArrayList<>();
+        for (Object encoded : (List<?>) x5c) {
+            if (!(encoded instanceof String)) {
+                throw new IllegalArgumentException("x5c entries must be strings");
+            }
+            final byte[] der = Base64.getDecoder().decode((String) encoded);
+            chain.add((X509Certificate) factory.generateCertificate(new ByteArrayInputStream(der)));
+        }
+        final PKIXParameters params = new PKIXParameters(trustAnchors);
+        params.setRevocationEnabled(false);
+        CertPathValidator.getInstance("PKIX").validate(factory.generateCertPath(chain), params);
+        return chain.get(0);
+    }
+
+    private static String commonName(X509Certificate certificate) {
+        try {
+            for (Rdn rdn : new LdapName(certificate.getSubjectX500Principal().getName()).getRdns()) {
+                if ("CN".equalsIgnoreCase(rdn.getType())) {
+                    return String.valueOf(rdn.getValue());
+                }
+            }
+        } catch (InvalidNameException e) {
+            return null;
+        }
+        return null;
+    }
+
+    private static AttestationVerdict readClaims(Map<String, Object> payload) {
+        final Object timestampMs = payload.get("timestampMs");
+        return new AttestationVerdict(true, null,
+                payload.get("nonce") instanceof String ? (String) payload.get("nonce") : null,
+                timestampMs instanceof Long ? (Long) timestampMs : 0,
+                payload.get("apkPackageName") instanceof String ? (String) payload.get("apkPackageName") : null,
+                Boolean.TRUE.equals(payload.get("ctsProfileMatch")),
+                Boolean.TRUE.equals(payload.get("basicIntegrity")));
+    }
+
+    private AttestationVerdict validateClaims(AttestationVerdict claims, Map<String, Object> payload) {
+        if (claims.getNonce() == null) {
+            return claims.reject("missing nonce");
+        }
+        if (expectedPackageName != null && !expectedPackageName.equals(claims.getApkPackageName())) {
+            return claims.reject("unexpected apkPackageName " + claims.getApkPackageName());
+        }
+        if (Math.abs(System.currentTimeMillis() - claims.getTimestampMs()) > maxTokenAgeMs) {
+            return claims.reject("timestampMs outside the permitted window");
+        }
+        if (!expectedCertDigests.isEmpty()) {
+            final Object digests = payload.get("apkCertificateDigestSha256");
+            if (!(digests instanceof List) || !expectedCertDigests.equals(new HashSet<Object>((List<?>) digests))) {
+                return claims.reject("unexpected apkCertificateDigestSha256");
+            }
+        }
+        return claims;
+    }
+}
@@ -0,0 +1,195 @@
+package com.scottyab.safetynet.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.security.cert.CertificateFactory;
+import java.security.cert.TrustAnchor;
+import java.security.cert.X509Certificate;
+import java.text.SimpleDateFormat;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Set;
+import java.util.TimeZone;
+
+/**
+ * Local stand-in for the SafetyNet attestation service, for running the verification server with
+ * no network or device. It creates its own root CA and an attest.android.com leaf certificate and
+ * issues tokens in the same shape as SafetyNet, so they go through the real
+ * {@link AttestationVerifier} checks when it trusts {@link #getTrustAnchors()}.
+ * <p>
+ * For testing and load measurement only, never trust this root in production.
+ */
+public final class FakeAttestationIssuer {
+
+    private static final String SHA256_WITH_RSA_OID = "1.2.840.113549.1.1.11";
+    private static final String COMMON_NAME_OID = "2.5.4.3";
+    private static final String BASIC_CONSTRAINTS_OID = "2.5.29.19";
+    private static final long VALIDITY_MS = 24L * 60 * 60 * 1000;
+
+    private final PrivateKey leafKey;
+    private final X509Certificate rootCertificate;
+    private final String header;
+    private final Base64.Encoder base64Url = Base64.getUrlEncoder().withoutPadding();
+
+    public FakeAttestationIssuer() {
+        this(AttestationVerifier.ATTESTATION_HOSTNAME);
+    }
+
+    /**
+     * @param leafCommonName CN of the signing certificate, anything other than
+     *                       {@link AttestationVerifier#ATTESTATION_HOSTNAME} gives tokens the verifier rejects
+     */
+    FakeAttestationIssuer(String leafCommonName) {
+        try {
+            final KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+            generator.initialize(2048, new SecureRandom());
+            final KeyPair root = generator.generateKeyPair();
+            final KeyPair leaf = generator.generateKeyPair();
+
+            final byte[] rootDer = certificate("SafetyNet Helper fake root", "SafetyNet Helper fake root", root.getPublic(), root.getPrivate(), true);
+            final byte[] leafDer = certificate("SafetyNet Helper fake root", leafCommonName, leaf.getPublic(), root.getPrivate(), false);
+
+            leafKey = leaf.getPrivate();
+            rootCertificate = (X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate(new ByteArrayInputStream(rootDer));
+
+            final Base64.Encoder base64 = Base64.getEncoder();
+            header = base64Url.encodeToString(("{\"alg\":\"RS256\",\"x5c\":[\"" + base64.encodeToString(leafDer)
+                    + "\",\"" + base64.encodeToString(rootDer) + "\"]}").getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("unable to create fake attestation issuer", e);
+        }
+    }
+
+    /**
+     * @return the fake root, pass to {@link AttestationVerifier} to accept this issuer's tokens
+     */
+    public Set<TrustAnchor> getTrustAnchors() {
+        return Collections.singleton(new TrustAnchor(rootCertificate, null));
+    }
+
+    /**
+     * @param nonce           BASE64 encoded, as issued by the {@link NonceStore}
+     * @param apkPackageName  the requesting app
+     * @param certDigests     BASE64 SHA-256 digests of the app's signing certificates
+     * @param ctsProfileMatch verdict to report
+     * @param basicIntegrity  verdict to report
+     * @return signed compact JWS, as SafetyNet attest would return
+     */
+    public String issue(String nonce, String apkPackageName, Collection<String> certDigests,
+                        boolean ctsProfileMatch, boolean basicIntegrity) {
+        final StringBuilder digests = new StringBuilder();
+        for (String digest : certDigests) {
+            digests.append(digests.length() == 0 ? "" : ",").append(Json.quote(digest));
+        }
+        final String payload = "{\"nonce\":" + Json.quote(nonce)
+                + ",\"timestampMs\":" + System.currentTimeMillis()
+                + ",\"apkPackageName\":" + Json.quote(apkPackageName)
+                + ",\"apkCertificateDigestSha256\":[" + digests + "]"
+                + ",\"ctsProfileMatch\":" + ctsProfileMatch
+                + ",\"basicIntegrity\":" + basicIntegrity
+                + ",\"evaluationType\":\"BASIC\"}";
+        final String signingInput = header + '.' + base64Url.encodeToString(payload.getBytes(StandardCharsets.UTF_8));
+        try {
+            final Signature rs256 = Signature.getInstance("SHA256withRSA");
+            rs256.initSign(leafKey);
+            rs256.update(signingInput.getBytes(StandardCharsets.US_ASCII));
+            return signingInput + '.' + base64Url.encodeToString(rs256.sign());
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("unable to sign fake attestation", e);
+        }
+    }
+
+    /**
+     * Minimal v3 X.509 certificate, DER encoded by hand so no non-public JDK or third party API is needed
+     */
+    private static byte[] certificate(String issuer, String subject, PublicKey subjectKey, PrivateKey issuerKey,
+                                      boolean ca) throws GeneralSecurityException {
+        final long now = System.currentTimeMillis();
+        final byte[] algorithm = sequence(oid(SHA256_WITH_RSA_OID), new byte[]{0x05, 0x00});
+        final byte[] tbs = sequence(
+                tlv(0xA0, integer(BigInteger.valueOf(2))),
+                integer(new BigInteger(64, new SecureRandom()).abs().add(BigInteger.ONE)),
+                algorithm,
+                name(issuer),
+                sequence(utcTime(now - VALIDITY_MS), utcTime(now + VALIDITY_MS)),
+                name(subject),
+                subjectKey.getEncoded(),
+                ca ? tlv(0xA3, sequence(sequence(oid(BASIC_CONSTRAINTS_OID), new byte[]{0x01, 0x01, (byte) 0xFF},
+                        tlv(0x04, sequence(new byte[]{0x01, 0x01, (byte) 0xFF}))))) : new byte[0]);
+
+        final Signature signer = Signature.getInstance("SHA256withRSA");
+        signer.initSign(issuerKey);
+        signer.update(tbs);
+        return sequence(tbs, algorithm, bitString(signer.sign()));
+    }
+
+    private static byte[] name(String commonName) {
+        return sequence(tlv(0x31, sequence(oid(COMMON_NAME_OID), tlv(0x0C, commonName.getBytes(StandardCharsets.UTF_8)))));
+    }
+
+    private static byte[] utcTime(long time) {
+        final SimpleDateFormat format = new SimpleDateFormat("yyMMddHHmmss'Z'");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return tlv(0x17, format.format(new Date(time)).getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static byte[] integer(BigInteger value) {
+        return tlv(0x02, value.toByteArray());
+    }
+
+    private static byte[] bitString(byte[] bits) {
+        final byte[] content = new byte[bits.length + 1];
+        System.arraycopy(bits, 0, content, 1, bits.length);
+        return tlv(0x03, content);
+    }
+
+    private static byte[] oid(String dotted) {
+        final String[] arcs = dotted.split("\\.");
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(Integer.parseInt(arcs[0]) * 40 + Integer.parseInt(arcs[1]));
+        for (int i = 2; i < arcs.length; i++) {
+            final long arc = Long.parseLong(arcs[i]);
+            for (int shift = (63 - Long.numberOfLeadingZeros(arc | 1)) / 7 * 7; shift > 0; shift -= 7) {
+                out.write((int) ((arc >>> shift) & 0x7F) | 0x80);
+            }
+            out.write((int) (arc & 0x7F));
+        }
+        return tlv(0x06, out.toByteArray());
+    }
+
+    private static byte[] sequence(byte[]... elements) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] element : elements) {
+            out.write(element, 0, element.length);
+        }
+        return tlv(0x30, out.toByteArray());
+    }
+
+    private static byte[] tlv(int tag, byte[] content) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(content.length + 6);
+        out.write(tag);
+        final int length = content.length;
+        if (length < 0x80) {
+            out.write(length);
+        } else {
+            final int bytes = (32 - Integer.numberOfLeadingZeros(length) + 7) / 8;
+            out.write(0x80 | bytes);
+            for (int i = bytes - 1; i >= 0; i--) {
+                out.write(length >>> (i * 8));
+            }
+        }
+        out.write(content, 0, content.length);
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,194 @@
+package com.scottyab.safetynet.server;
+
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drives a {@link VerificationServer} started with --fake-issuer and reports verifications per
+ * second and /verify latency.
+ * <p>
+ * All the tokens are issued (nonce then fake attest, an RSA sign each) before the timed window, so
+ * that work doesn't compete with /verify for the server's CPU. In the window each worker, a virtual
+ * thread, takes tokens from the shared pool and verifies them. Every token is unique so every
+ * verification is a cache miss, the numbers are the cost of full signature and chain checks.
+ * Tokens are issued up front so start the server with a --max-token-age-ms that covers issuing them
+ * plus the run, or the last ones verified are rejected as stale.
+ * <p>
+ * Usage: [--url http://localhost:8080] [--concurrency 64] [--duration-s 30] [--warmup-s 5]
+ * [--tokens 100000]
+ */
+public final class LoadGenerator {
+
+    private final HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+    private final String baseUrl;
+
+    private LoadGenerator(String baseUrl) {
+        this.baseUrl = baseUrl;
+    }
+
+    /**
+     * Latencies of one worker, in nanos
+     */
+    private static final class Samples {
+        long[] latencies = new long[1024];
+        int count;
+        int failures;
+
+        void add(long latency) {
+            if (count == latencies.length) {
+                latencies = Arrays.copyOf(latencies, count * 2);
+            }
+            latencies[count++] = latency;
+        }
+    }
+
+    private void issue(int count, Queue<String> tokens) throws Exception {
+        for (int i = 0; i < count; i++) {
+            final String nonce = (String) Json.parseObject(post("/nonce", "")).get("nonce");
+            tokens.add(post("/fake/attest?nonce=" + URLEncoder.encode(nonce, StandardCharsets.UTF_8), ""));
+        }
+    }
+
+    /**
+     * @param exhaustedNanos set to when the pool first ran dry, if it did before endNanos
+     */
+    private Samples run(Queue<String> tokens, long warmupEndNanos, long endNanos, AtomicLong exhaustedNanos) {
+        final Samples samples = new Samples();
+        while (System.nanoTime() < endNanos) {
+            final String jws = tokens.poll();
+            if (jws == null) {
+                exhaustedNanos.compareAndSet(0, System.nanoTime());
+                break;
+            }
+            try {
+                final long start = System.nanoTime();
+                final String verdict = post("/verify", jws);
+                final long latency = System.nanoTime() - start;
+
+                if (start >= warmupEndNanos) {
+                    if (Boolean.TRUE.equals(Json.parseObject(verdict).get("valid"))) {
+                        samples.add(latency);
+                    } else {
+                        samples.failures++;
+                    }
+                }
+            } catch (Exception e) {
+                samples.failures++;
+            }
+        }
+        return samples;
+    }
+
+    private String post(String path, String body) throws Exception {
+        final HttpRequest request = HttpRequest.newBuilder(URI.create(baseUrl + path))
+                .header("Content-Type", "text/plain")
+                .POST(HttpRequest.BodyPublishers.ofString(body))
+                .build();
+        final HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+        if (response.statusCode() != 200) {
+            throw new IllegalStateException(path + " returned " + response.statusCode());
+        }
+        return response.body();
+    }
+
+    public static void main(String[] args) throws Exception {
+        String url = "http://localhost:8080";
+        int concurrency = 64;
+        int durationS = 30;
+        int warmupS = 5;
+        int tokenCount = 100_000;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--url":
+                    url = args[++i];
+                    break;
+                case "--concurrency":
+                    concurrency = Integer.parseInt(args[++i]);
+                    break;
+                case "--duration-s":
+                    durationS = Integer.parseInt(args[++i]);
+                    break;
+                case "--warmup-s":
+                    warmupS = Integer.parseInt(args[++i]);
+                    break;
+                case "--tokens":
+                    tokenCount = Integer.parseInt(args[++i]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown argument " + args[i]);
+            }
+        }
+
+        final LoadGenerator generator = new LoadGenerator(url);
+        final Queue<String> tokens = new ConcurrentLinkedQueue<>();
+        final long issueStart = System.nanoTime();
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            final List<Future<?>> issuers = new ArrayList<>();
+            for (int i = 0; i < concurrency; i++) {
+                final int count = tokenCount / concurrency + (i < tokenCount % concurrency ? 1 : 0);
+                issuers.add(executor.submit(() -> {
+                    generator.issue(count, tokens);
+                    return null;
+                }));
+            }
+            for (Future<?> issuer : issuers) {
+                issuer.get();
+            }
+        }
+        System.out.printf("issued %d unique tokens in %.1fs, every verification is a cache miss%n",
+                tokens.size(), (System.nanoTime() - issueStart) / 1e9);
+
+        final long warmupEnd = System.nanoTime() + TimeUnit.SECONDS.toNanos(warmupS);
+        final long end = warmupEnd + TimeUnit.SECONDS.toNanos(durationS);
+        final AtomicLong exhausted = new AtomicLong();
+
+        final List<Future<Samples>> workers = new ArrayList<>();
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < concurrency; i++) {
+                workers.add(executor.submit(() -> generator.run(tokens, warmupEnd, end, exhausted)));
+            }
+        }
+
+        long[] all = new long[0];
+        int failures = 0;
+        for (Future<Samples> worker : workers) {
+            final Samples samples = worker.get();
+            final int offset = all.length;
+            all = Arrays.copyOf(all, offset + samples.count);
+            System.arraycopy(samples.latencies, 0, all, offset, samples.count);
+            failures += samples.failures;
+        }
+        Arrays.sort(all);
+
+        //the window is cut short if the pool ran dry, rates are over the time actually measured
+        final long windowEnd = exhausted.get() != 0 ? Math.min(exhausted.get(), end) : end;
+        final double windowS = Math.max(0, windowEnd - warmupEnd) / 1e9;
+        if (windowEnd < end) {
+            System.out.printf("token pool ran out after %.1fs of the %ds window, raise --tokens%n", windowS, durationS);
+        }
+        System.out.printf("concurrency=%d duration=%.1fs verifications=%d failures=%d%n", concurrency, windowS, all.length, failures);
+        System.out.printf("throughput=%.1f verifications/s (cache misses only)%n", windowS > 0 ? all.length / windowS : 0);
+        if (all.length > 0) {
+            System.out.printf("latency ms p50=%.2f p90=%.2f p99=%.2f max=%.2f%n",
+                    percentile(all, 0.50), percentile(all, 0.90), percentile(all, 0.99), all[all.length - 1] / 1e6);
+        }
+    }
+
+    private static double percentile(long[] sorted, double percentile) {
+        return sorted[Math.min(sorted.length - 1, (int) (sorted.length * percentile))] / 1e6;
+    }
+}
@@ -0,0 +1,72 @@
+package com.scottyab.safetynet.server;
+
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Issues one-time request nonces for apps to pass to SafetyNet attest, and redeems them at most
+ * once. This is the single source of truth for replay protection, the {@link AttestationCache}
+ * never decides whether a nonce is still usable.
+ */
+public final class NonceStore {
+
+    private final SecureRandom secureRandom = new SecureRandom();
+    private final ConcurrentHashMap<String, Long> outstanding = new ConcurrentHashMap<>();
+    private final long nonceTtlMs;
+    private final int maxOutstanding;
+
+    /**
+     * @param nonceTtlMs     how long an issued nonce may be redeemed for
+     * @param maxOutstanding cap on issued but unredeemed nonces
+     */
+    public NonceStore(long nonceTtlMs, int maxOutstanding) {
+        if (nonceTtlMs <= 0 || maxOutstanding <= 0) {
+            throw new IllegalArgumentException("nonceTtlMs and maxOutstanding must be positive");
+        }
+        this.nonceTtlMs = nonceTtlMs;
+        this.maxOutstanding = maxOutstanding;
+    }
+
+    /**
+     * @return a new nonce, BASE64 encoded the same way SafetyNet echoes it in the payload
+     * @throws IllegalStateException if too many nonces are outstanding
+     */
+    public String issue() {
+        if (outstanding.size() >= maxOutstanding) {
+            purgeExpired();
+            if (outstanding.size() >= maxOutstanding) {
+                throw new IllegalStateException("too many outstanding nonces");
+            }
+        }
+        final byte[] nonce = new byte[32];
+        secureRandom.nextBytes(nonce);
+        final String encoded = Base64.getEncoder().encodeToString(nonce);
+        outstanding.put(encoded, System.currentTimeMillis() + nonceTtlMs);
+        return encoded;
+    }
+
+    /**
+     * Atomically consumes the nonce, only the first caller for an issued, unexpired nonce gets true.
+     *
+     * @param nonce BASE64 encoded, as found in the attestation payload
+     */
+    public boolean redeem(String nonce) {
+        if (nonce == null) {
+            return false;
+        }
+        final Long expiresAt = outstanding.remove(nonce);
+        return expiresAt != null && expiresAt >= System.currentTimeMillis();
+    }
+
+    private void purgeExpired() {
+        final long now = System.currentTimeMillis();
+        for (Iterator<Map.Entry<String, Long>> it = outstanding.entrySet().iterator(); it.hasNext(); ) {
+            if (it.next().getValue() < now) {
+                it.remove();
+            }
+        }
+    }
+}
@@ -0,0 +1,280 @@
+package com.scottyab.safetynet.server;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.cert.TrustAnchor;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Reference backend for server side SafetyNet validation, an embedded HTTP server where every
+ * request runs on its own virtual thread.
+ * <ul>
+ * <li>{@code POST /nonce} issues a one-time nonce for the app to pass to attest</li>
+ * <li>{@code POST /verify} takes the JWS as text, or an {@code AttestationEnvelope} as
+ * application/octet-stream, and returns the verdict. The nonce is redeemed, so a token is only
+ * valid once</li>
+ * <li>{@code GET /chains} lists the certificate chain ids apps may leave out of envelopes, as
+ * signed decimal strings i.e. {@code {"chainIds":["-2135245813934399791"]}}</li>
+ * <li>{@code POST /fake/attest?nonce=...} only with --fake-issuer, issues a token from the
+ * {@link FakeAttestationIssuer} in place of Play services</li>
+ * </ul>
+ * Run with --fake-issuer to work with no network or device, i.e. as a load test baseline with
+ * {@link LoadGenerator}.
+ */
+public final class VerificationServer {
+
+    private static final Logger LOG = Logger.getLogger(VerificationServer.class.getName());
+    private static final String DEFAULT_PACKAGE_NAME = "com.scottyab.safetynet.sample";
+    private static final long NONCE_TTL_MS = 10 * 60 * 1000;
+    private static final int MAX_OUTSTANDING_NONCES = 1_000_000;
+    /**
+     * SafetyNet tokens are a few KB, anything much bigger isn't one
+     */
+    static final int MAX_BODY_BYTES = 32 * 1024;
+
+    private final HttpServer httpServer;
+    private final ExecutorService executor;
+    private final NonceStore nonceStore;
+    private final AttestationCache cache;
+    private final AttestationVerifier verifier;
+    private final AttestationEnvelopeDecoder envelopeDecoder = new AttestationEnvelopeDecoder();
+    private final FakeAttestationIssuer fakeIssuer;
+    private final String packageName;
+    private final List<String> certDigests;
+
+    /**
+     * @param port        0 for any free port
+     * @param packageName the app tokens must be issued for
+     * @param certDigests BASE64 SHA-256 digests of the app's signing certificates, empty to skip the check
+     * @param maxTokenAgeMs how old a token's timestampMs may be
+     * @param cacheSize   max cached verdicts
+     * @param fakeIssuer  if not null, trusted instead of the system roots and served on /fake/attest
+     */
+    public VerificationServer(int port, String packageName, List<String> certDigests, long maxTokenAgeMs,
+                              int cacheSize, FakeAttestationIssuer fakeIssuer) throws IOException {
+        this.packageName = packageName;
+        this.certDigests = certDigests;
+        this.fakeIssuer = fakeIssuer;
+        final Set<TrustAnchor> trustAnchors = fakeIssuer != null ? fakeIssuer.getTrustAnchors() : AttestationVerifier.systemTrustAnchors();
+        verifier = new AttestationVerifier(trustAnchors, packageName, certDigests, maxTokenAgeMs);
+        cache = new AttestationCache(cacheSize, maxTokenAgeMs);
+        nonceStore = new NonceStore(NONCE_TTL_MS, MAX_OUTSTANDING_NONCES);
+
+        executor = Executors.newVirtualThreadPerTaskExecutor();
+        httpServer = HttpServer.create(new InetSocketAddress(port), 1024);
+        httpServer.setExecutor(executor);
+        httpServer.createContext("/nonce", guarded(post(this::handleNonce)));
+        httpServer.createContext("/verify", guarded(post(this::handleVerify)));
+        httpServer.createContext("/chains", guarded(this::handleChains));
+        if (fakeIssuer != null) {
+            httpServer.createContext("/fake/attest", guarded(post(this::handleFakeAttest)));
+        }
+    }
+
+    public void start() {
+        httpServer.start();
+    }
+
+    public void stop() {
+        httpServer.stop(0);
+        executor.close();
+    }
+
+    public int getPort() {
+        return httpServer.getAddress().getPort();
+    }
+
+    private void handleNonce(HttpExchange exchange) throws IOException {
+        final String nonce;
+        try {
+            nonce = nonceStore.issue();
+        } catch (IllegalStateException e) {
+            respond(exchange, 503, error(e.getMessage()));
+            return;
+        }
+        respond(exchange, 200, "{\"nonce\":" + Json.quote(nonce) + "}");
+    }
+
+    private void handleVerify(HttpExchange exchange) throws IOException {
+        final byte[] body = readBody(exchange);
+        if (body == null) {
+            respond(exchange, 413, error("body exceeds " + MAX_BODY_BYTES + " bytes"));
+            return;
+        }
+        final boolean envelope = "application/octet-stream".equals(exchange.getRequestHeaders().getFirst("Content-Type"));
+        final String jws;
+        try {
+            jws = envelope ? envelopeDecoder.decode(body) : new String(body, StandardCharsets.US_ASCII).trim();
+        } catch (IllegalArgumentException e) {
+            respond(exchange, 400, error(e.getMessage()));
+            return;
+        }
+
+        final AttestationVerdict verdict = cache.verifyAndRedeem(jws, verifier, nonceStore);
+        if (verdict.isValid() && !envelope) {
+            envelopeDecoder.learnChain(jws);
+        }
+        respond(exchange, 200, "{\"valid\":" + verdict.isValid()
+                + ",\"reason\":" + Json.quote(verdict.getReason())
+                + ",\"ctsProfileMatch\":" + verdict.isCtsProfileMatch()
+                + ",\"basicIntegrity\":" + verdict.isBasicIntegrity()
+                + ",\"timestampMs\":" + verdict.getTimestampMs() + "}");
+    }
+
+    private void handleChains(HttpExchange exchange) throws IOException {
+        final StringBuilder ids = new StringBuilder();
+        for (Long id : envelopeDecoder.getKnownChainIds()) {
+            //signed decimal strings, Long.parseLong() safe and no precision lost by JSON number parsers
+            ids.append(ids.length() == 0 ? "" : ",").append(Json.quote(Long.toString(id)));
+        }
+        respond(exchange, 200, "{\"chainIds\":[" + ids + "]}");
+    }
+
+    private void handleFakeAttest(HttpExchange exchange) throws IOException {
+        final Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+        final String nonce = query.get("nonce");
+        if (nonce == null) {
+            respond(exchange, 400, error("nonce is required"));
+            return;
+        }
+        final String apkPackageName = query.containsKey("package") ? query.get("package") : packageName;
+        final String jws = fakeIssuer.issue(nonce, apkPackageName, certDigests,
+                !"false".equals(query.get("ctsProfileMatch")), !"false".equals(query.get("basicIntegrity")));
+        exchange.getResponseHeaders().set("Content-Type", "text/plain");
+        send(exchange, 200, jws.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static HttpHandler post(HttpHandler handler) {
+        return exchange -> {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                respond(exchange, 405, error("POST only"));
+                return;
+            }
+            handler.handle(exchange);
+        };
+    }
+
+    /**
+     * Every request gets a response rather than a dead thread and a client left waiting. Malformed
+     * input is a 400, anything else is a server fault so it's logged and is a 500.
+     */
+    private static HttpHandler guarded(HttpHandler handler) {
+        return exchange -> {
+            try {
+                handler.handle(exchange);
+            } catch (IllegalArgumentException e) {
+                respondIfNotSent(exchange, 400, error(e.getMessage()));
+            } catch (RuntimeException e) {
+                LOG.log(Level.SEVERE, "error handling " + exchange.getRequestMethod() + " " + exchange.getRequestURI().getPath(), e);
+                respondIfNotSent(exchange, 500, error("internal error"));
+            } finally {
+                exchange.close();
+            }
+        };
+    }
+
+    private static void respondIfNotSent(HttpExchange exchange, int status, String json) throws IOException {
+        if (exchange.getResponseCode() == -1) {
+            respond(exchange, status, json);
+        }
+    }
+
+    /**
+     * @return the body or null if it's larger than {@link #MAX_BODY_BYTES}
+     */
+    private static byte[] readBody(HttpExchange exchange) throws IOException {
+        try (InputStream in = exchange.getRequestBody()) {
+            final byte[] body = in.readNBytes(MAX_BODY_BYTES + 1);
+            return body.length > MAX_BODY_BYTES ? null : body;
+        }
+    }
+
+    private static Map<String, String> parseQuery(String rawQuery) {
+        final Map<String, String> query = new HashMap<>();
+        if (rawQuery != null) {
+            for (String pair : rawQuery.split("&")) {
+                final int eq = pair.indexOf('=');
+                if (eq > 0) {
+                    query.put(URLDecoder.decode(pair.substring(0, eq), StandardCharsets.UTF_8),
+                            URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8));
+                }
+            }
+        }
+        return query;
+    }
+
+    private static String error(String message) {
+        return "{\"error\":" + Json.quote(message) + "}";
+    }
+
+    private static void respond(HttpExchange exchange, int status, String json) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        send(exchange, status, json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void send(HttpExchange exchange, int status, byte[] body) throws IOException {
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    /**
+     * Usage: [--port 8080] [--package name] [--cert-digest base64]... [--max-token-age-ms 120000]
+     * [--cache-size 100000] [--fake-issuer]
+     */
+    public static void main(String[] args) throws IOException {
+        int port = 8080;
+        String packageName = DEFAULT_PACKAGE_NAME;
+        final List<String> certDigests = new ArrayList<>();
+        long maxTokenAgeMs = 2 * 60 * 1000;
+        int cacheSize = 100_000;
+        boolean fake = false;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--port":
+                    port = Integer.parseInt(args[++i]);
+                    break;
+                case "--package":
+                    packageName = args[++i];
+                    break;
+                case "--cert-digest":
+                    certDigests.add(args[++i]);
+                    break;
+                case "--max-token-age-ms":
+                    maxTokenAgeMs = Long.parseLong(args[++i]);
+                    break;
+                case "--cache-size":
+                    cacheSize = Integer.parseInt(args[++i]);
+                    break;
+                case "--fake-issuer":
+                    fake = true;
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown argument " + args[i]);
+            }
+        }
+
+        final VerificationServer server = new VerificationServer(port, packageName, certDigests, maxTokenAgeMs,
+                cacheSize, fake ? new FakeAttestationIssuer() : null);
+        server.start();
+        System.out.println("SafetyNet verification server listening on port " + server.getPort()
+                + (fake ? " (fake attestation issuer, do not use in production)" : ""));
+    }
+}
@@ -0,0 +1,152 @@
+package com.scottyab.safetynet.server;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AttestationCacheTest {
+
+    private static final long MAX_TOKEN_AGE_MS = 60 * 1000;
+
+    private NonceStore nonceStore;
+    private StubVerifier verifier;
+
+    @Before
+    public void setUp() {
+        nonceStore = new NonceStore(MAX_TOKEN_AGE_MS, 10_000);
+        verifier = new StubVerifier();
+    }
+
+    @Test
+    public void firstRedeemIsValid() {
+        final AttestationCache cache = new AttestationCache(100, MAX_TOKEN_AGE_MS);
+        final String token = verifier.token(nonceStore.issue(), System.currentTimeMillis());
+
+        assertTrue(cache.verifyAndRedeem(token, verifier, nonceStore).isValid());
+    }
+
+    @Test
+    public void replayRejectedOnCacheHit() {
+        final AttestationCache cache = new AttestationCache(100, MAX_TOKEN_AGE_MS);
+        final String token = verifier.token(nonceStore.issue(), System.currentTimeMillis());
+
+        assertTrue(cache.verifyAndRedeem(token, verifier, nonceStore).isValid());
+        assertFalse(cache.verifyAndRedeem(token, verifier, nonceStore).isValid());
+        assertEquals("second call should be a cache hit", 1, verifier.calls);
+    }
+
+    @Test
+    public void replayRejectedOnCacheMiss() {
+        final String token = verifier.token(nonceStore.issue(), System.currentTimeMillis());
+
+        assertTrue(new AttestationCache(100, MAX_TOKEN_AGE_MS).verifyAndRedeem(token, verifier, nonceStore).isValid());
+        assertFalse(new AttestationCache(100, MAX_TOKEN_AGE_MS).verifyAndRedeem(token, verifier, nonceStore).isValid());
+        assertEquals("each cache should have verified the token", 2, verifier.calls);
+    }
+
+    @Test
+    public void replayRejectedAfterEviction() {
+        final AttestationCache cache = new AttestationCache(10, MAX_TOKEN_AGE_MS);
+        final long now = System.currentTimeMillis();
+        //oldest token so it's the first to be evicted
+        final String token = verifier.token(nonceStore.issue(), now - 1000);
+        assertTrue(cache.verifyAndRedeem(token, verifier, nonceStore).isValid());
+
+        for (int i = 0; i < 50; i++) {
+            cache.verify(verifier.token(nonceStore.issue(), now), verifier);
+        }
+        final int callsBeforeReplay = verifier.calls;
+
+        assertFalse(cache.verifyAndRedeem(token, verifier, nonceStore).isValid());
+        assertEquals("token should have been evicted and verified again", callsBeforeReplay + 1, verifier.calls);
+    }
+
+    @Test
+    public void verifyDoesNotRedeemNonce() {
+        final AttestationCache cache = new AttestationCache(100, MAX_TOKEN_AGE_MS);
+        final String token = verifier.token(nonceStore.issue(), System.currentTimeMillis());
+
+        assertTrue(cache.verify(token, verifier).isValid());
+        assertTrue(cache.verify(token, verifier).isValid());
+        assertTrue(cache.verifyAndRedeem(token, verifier, nonceStore).isValid());
+    }
+
+    @Test
+    public void evictionKeepsCacheWithinBound() {
+        final AttestationCache cache = new AttestationCache(100, MAX_TOKEN_AGE_MS);
+        final long now = System.currentTimeMillis();
+        for (int i = 0; i < 1000; i++) {
+            cache.verify(verifier.token("nonce" + i, now - 1000 + i), verifier);
+            assertTrue("size " + cache.size() + " exceeds bound", cache.size() <= 100);
+        }
+    }
+
+    @Test
+    public void evictsOldestFirst() {
+        final AttestationCache cache = new AttestationCache(10, MAX_TOKEN_AGE_MS);
+        final long now = System.currentTimeMillis();
+        final String newest = verifier.token("newest", now);
+        cache.verify(newest, verifier);
+        for (int i = 0; i < 10; i++) {
+            cache.verify(verifier.token("older" + i, now - 1000 + i), verifier);
+        }
+        final int calls = verifier.calls;
+
+        cache.verify(newest, verifier);
+        assertEquals("newest token should still be cached", calls, verifier.calls);
+    }
+
+    @Test
+    public void rejectedVerdictsNotCached() {
+        final AttestationCache cache = new AttestationCache(100, MAX_TOKEN_AGE_MS);
+        final long aYearFromNow = System.currentTimeMillis() + 365L * 24 * 60 * 60 * 1000;
+        for (int i = 0; i < 200; i++) {
+            verifier.rejectNext = true;
+            assertFalse(cache.verify(verifier.token("forged" + i, aYearFromNow), verifier).isValid());
+        }
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void expiredVerdictVerifiedAgain() {
+        final AttestationCache cache = new AttestationCache(100, 50);
+        final String token = verifier.token("nonce", System.currentTimeMillis() - 100);
+
+        cache.verify(token, verifier);
+        cache.verify(token, verifier);
+        assertEquals(2, verifier.calls);
+        assertEquals(0, cache.size());
+    }
+
+    /**
+     * Tokens are just ids, the verdict claims are registered when the token is made
+     */
+    private static final class StubVerifier implements AttestationCache.Verifier {
+        private final Map<String, AttestationVerdict> verdicts = new HashMap<>();
+        int calls;
+        boolean rejectNext;
+
+        String token(String nonce, long timestampMs) {
+            final String token = "token-" + verdicts.size();
+            verdicts.put(token, new AttestationVerdict(true, null, nonce, timestampMs, "com.example", true, true));
+            return token;
+        }
+
+        @Override
+        public AttestationVerdict verify(String jws) {
+            calls++;
+            final AttestationVerdict verdict = verdicts.get(jws);
+            if (rejectNext) {
+                rejectNext = false;
+                return verdict.reject("signature does not verify");
+            }
+            return verdict;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package com.scottyab.safetynet.server;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Decodes the golden vectors in attestation-envelope-vectors.properties, the same bytes the app
+ * side AttestationEnvelopeTest checks the encoder produces
+ */
+public class AttestationEnvelopeDecoderTest {
+
+    private static Properties vectors;
+
+    private AttestationEnvelopeDecoder decoder;
+
+    @BeforeClass
+    public static void loadVectors() throws IOException {
+        vectors = new Properties();
+        try (InputStream in = AttestationEnvelopeDecoderTest.class.getResourceAsStream("/attestation-envelope-vectors.properties")) {
+            vectors.load(in);
+        }
+    }
+
+    @Before
+    public void setUp() {
+        decoder = new AttestationEnvelopeDecoder();
+    }
+
+    private static byte[] envelope(String format) {
+        return HexFormat.of().parseHex(vectors.getProperty("envelope." + format));
+    }
+
+    @Test
+    public void decodesVerbatimVector() {
+        assertEquals(vectors.getProperty("jws.nonCanonical"), decoder.decode(envelope("verbatim")));
+    }
+
+    @Test
+    public void decodesDecodedVector() {
+        assertEquals(vectors.getProperty("jws"), decoder.decode(envelope("decoded")));
+    }
+
+    @Test
+    public void decodesChainRefVector() {
+        decoder.learnChain(vectors.getProperty("jws"));
+
+        assertEquals(vectors.getProperty("jws"), decoder.decode(envelope("chainRef")));
+        assertTrue("chain ref should be smaller than the full header", envelope("chainRef").length < envelope("decoded").length);
+    }
+
+    @Test
+    public void learnChainIdMatchesVector() {
+        final long expected = Long.parseLong(vectors.getProperty("chainId"));
+
+        assertEquals(Long.valueOf(expected), decoder.learnChain(vectors.getProperty("jws")));
+        assertTrue(decoder.getKnownChainIds().contains(expected));
+    }
+
+    @Test
+    public void unknownChainIdRejected() {
+        try {
+            decoder.decode(envelope("chainRef"));
+            fail("expected unknown chain id to be rejected");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("unknown certificate chain"));
+        }
+    }
+
+    @Test
+    public void truncatedEnvelopeRejected() {
+        decoder.learnChain(vectors.getProperty("jws"));
+        for (String format : new String[]{"verbatim", "decoded", "chainRef"}) {
+            final byte[] envelope = envelope(format);
+            for (int length = 0; length < envelope.length; length++) {
+                try {
+                    decoder.decode(Arrays.copyOf(envelope, length));
+                    fail("expected envelope truncated to " + length + " bytes to be rejected, format " + format);
+                } catch (IllegalArgumentException expected) {
+                    //expected
+                }
+            }
+        }
+    }
+
+    @Test
+    public void trailingBytesRejected() {
+        final byte[] envelope = envelope("decoded");
+        try {
+            decoder.decode(Arrays.copyOf(envelope, envelope.length + 1));
+            fail("expected trailing bytes to be rejected");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("trailing"));
+        }
+    }
+
+    @Test
+    public void unknownVersionRejected() {
+        final byte[] envelope = envelope("decoded");
+        envelope[1] = 2;
+        try {
+            decoder.decode(envelope);
+            fail("expected unknown version to be rejected");
+        } catch (IllegalArgumentException expected) {
+            //expected
+        }
+    }
+}
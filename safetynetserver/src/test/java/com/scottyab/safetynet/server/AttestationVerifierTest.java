@@ -0,0 +1,132 @@
+package com.scottyab.safetynet.server;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AttestationVerifierTest {
+
+    private static final String PACKAGE_NAME = "com.scottyab.safetynet.sample";
+    private static final List<String> CERT_DIGESTS = Collections.singletonList("AAECAwQFBgcICQoLDA0ODxAREhMUFRYXGBkaGxwdHh8=");
+    private static final long MAX_TOKEN_AGE_MS = 60 * 1000;
+    private static final String NONCE = "R2Rra24vSnWeSlt3bc1PYYTEzNDEwNjQ0NzA=";
+
+    private static final Base64.Encoder BASE64_URL = Base64.getUrlEncoder().withoutPadding();
+
+    //RSA key generation is slow, share the issuers across tests
+    private static FakeAttestationIssuer issuer;
+    private static FakeAttestationIssuer wrongCnIssuer;
+
+    @BeforeClass
+    public static void createIssuers() {
+        issuer = new FakeAttestationIssuer();
+        wrongCnIssuer = new FakeAttestationIssuer("attest.example.com");
+    }
+
+    private static AttestationVerifier verifier(long maxTokenAgeMs) {
+        return new AttestationVerifier(issuer.getTrustAnchors(), PACKAGE_NAME, CERT_DIGESTS, maxTokenAgeMs);
+    }
+
+    @Test
+    public void acceptsFakeIssuerToken() {
+        final AttestationVerdict verdict = verifier(MAX_TOKEN_AGE_MS).verify(issuer.issue(NONCE, PACKAGE_NAME, CERT_DIGESTS, true, false));
+
+        assertTrue(verdict.getReason(), verdict.isValid());
+        assertEquals(NONCE, verdict.getNonce());
+        assertEquals(PACKAGE_NAME, verdict.getApkPackageName());
+        assertTrue(verdict.isCtsProfileMatch());
+        assertFalse(verdict.isBasicIntegrity());
+    }
+
+    @Test
+    public void rejectsTamperedPayload() {
+        final String[] segments = issuer.issue(NONCE, PACKAGE_NAME, CERT_DIGESTS, false, false).split("\\.");
+        final String payload = new String(Base64.getUrlDecoder().decode(segments[1]), StandardCharsets.UTF_8)
+                .replace("\"ctsProfileMatch\":false", "\"ctsProfileMatch\":true");
+        final String tampered = segments[0] + '.' + base64Url(payload) + '.' + segments[2];
+
+        final AttestationVerdict verdict = verifier(MAX_TOKEN_AGE_MS).verify(tampered);
+
+        assertFalse(verdict.isValid());
+        assertEquals("signature does not verify", verdict.getReason());
+    }
+
+    @Test
+    public void rejectsWrongCommonName() {
+        final AttestationVerifier verifier = new AttestationVerifier(wrongCnIssuer.getTrustAnchors(), PACKAGE_NAME,
+                CERT_DIGESTS, MAX_TOKEN_AGE_MS);
+
+        final AttestationVerdict verdict = verifier.verify(wrongCnIssuer.issue(NONCE, PACKAGE_NAME, CERT_DIGESTS, true, true));
+
+        assertFalse(verdict.isValid());
+        assertTrue(verdict.getReason(), verdict.getReason().contains(AttestationVerifier.ATTESTATION_HOSTNAME));
+    }
+
+    @Test
+    public void rejectsUntrustedRoot() {
+        final AttestationVerdict verdict = verifier(MAX_TOKEN_AGE_MS).verify(wrongCnIssuer.issue(NONCE, PACKAGE_NAME, CERT_DIGESTS, true, true));
+
+        assertFalse(verdict.isValid());
+        assertTrue(verdict.getReason(), verdict.getReason().startsWith("certificate chain invalid"));
+    }
+
+    @Test
+    public void rejectsStaleTimestamp() throws InterruptedException {
+        final String jws = issuer.issue(NONCE, PACKAGE_NAME, CERT_DIGESTS, true, true);
+        Thread.sleep(20);
+
+        final AttestationVerdict verdict = verifier(10).verify(jws);
+
+        assertFalse(verdict.isValid());
+        assertEquals("timestampMs outside the permitted window", verdict.getReason());
+    }
+
+    @Test
+    public void rejectsUnexpectedPackageName() {
+        final AttestationVerdict verdict = verifier(MAX_TOKEN_AGE_MS).verify(issuer.issue(NONCE, "com.example.other", CERT_DIGESTS, true, true));
+
+        assertFalse(verdict.isValid());
+        assertTrue(verdict.getReason(), verdict.getReason().startsWith("unexpected apkPackageName"));
+    }
+
+    @Test
+    public void rejectsUnexpectedCertDigests() {
+        final AttestationVerdict verdict = verifier(MAX_TOKEN_AGE_MS).verify(issuer.issue(NONCE, PACKAGE_NAME,
+                Collections.singletonList("ZmFrZQ=="), true, true));
+
+        assertFalse(verdict.isValid());
+        assertEquals("unexpected apkCertificateDigestSha256", verdict.getReason());
+    }
+
+    @Test
+    public void rejectsDeeplyNestedHeader() {
+        final StringBuilder nested = new StringBuilder("{\"alg\":");
+        for (int i = 0; i < 100_000; i++) {
+            nested.append('[');
+        }
+        final String jws = base64Url(nested.toString()) + '.' + base64Url("{}") + '.' + base64Url("sig");
+
+        final AttestationVerdict verdict = verifier(MAX_TOKEN_AGE_MS).verify(jws);
+
+        assertFalse(verdict.isValid());
+        assertTrue(verdict.getReason(), verdict.getReason().startsWith("malformed JWS"));
+    }
+
+    @Test
+    public void rejectsNotCompactJws() {
+        assertFalse(verifier(MAX_TOKEN_AGE_MS).verify("not.a-jws").isValid());
+        assertFalse(verifier(MAX_TOKEN_AGE_MS).verify("").isValid());
+    }
+
+    private static String base64Url(String text) {
+        return BASE64_URL.encodeToString(text.getBytes(StandardCharsets.UTF_8));
+    }
+}
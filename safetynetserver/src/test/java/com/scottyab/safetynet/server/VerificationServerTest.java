@@ -0,0 +1,114 @@
+package com.scottyab.safetynet.server;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class VerificationServerTest {
+
+    private static final String PACKAGE_NAME = "com.scottyab.safetynet.sample";
+
+    private static final HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+    private static VerificationServer server;
+    private static String baseUrl;
+
+    @BeforeClass
+    public static void startServer() throws IOException {
+        server = new VerificationServer(0, PACKAGE_NAME, Collections.<String>emptyList(), 60 * 1000, 1000,
+                new FakeAttestationIssuer());
+        server.start();
+        baseUrl = "http://localhost:" + server.getPort();
+    }
+
+    @AfterClass
+    public static void stopServer() {
+        server.stop();
+    }
+
+    @Test
+    public void verifiesFakeTokenOnceOnly() throws Exception {
+        final String nonce = (String) Json.parseObject(post("/nonce", "", "text/plain").body()).get("nonce");
+        final HttpResponse<String> attest = post("/fake/attest?nonce=" + URLEncoder.encode(nonce, StandardCharsets.UTF_8), "", "text/plain");
+        assertEquals(200, attest.statusCode());
+
+        final HttpResponse<String> first = post("/verify", attest.body(), "text/plain");
+        assertEquals(200, first.statusCode());
+        assertEquals(first.body(), Boolean.TRUE, Json.parseObject(first.body()).get("valid"));
+
+        final HttpResponse<String> replay = post("/verify", attest.body(), "text/plain");
+        assertEquals(200, replay.statusCode());
+        assertEquals(replay.body(), Boolean.FALSE, Json.parseObject(replay.body()).get("valid"));
+    }
+
+    @Test
+    public void learntChainListedAsSignedDecimal() throws Exception {
+        final String nonce = (String) Json.parseObject(post("/nonce", "", "text/plain").body()).get("nonce");
+        final String jws = post("/fake/attest?nonce=" + URLEncoder.encode(nonce, StandardCharsets.UTF_8), "", "text/plain").body();
+        post("/verify", jws, "text/plain");
+
+        final HttpResponse<String> chains = client.send(HttpRequest.newBuilder(URI.create(baseUrl + "/chains")).GET().build(),
+                HttpResponse.BodyHandlers.ofString());
+        final String header = new String(Base64.getUrlDecoder().decode(jws.split("\\.")[0]), StandardCharsets.UTF_8);
+        final String x5c = header.substring(header.indexOf('['), header.indexOf(']') + 1);
+        final long expected = AttestationEnvelopeDecoder.chainId(x5c.getBytes(StandardCharsets.UTF_8));
+
+        assertTrue(chains.body(), chains.body().contains(Json.quote(Long.toString(expected))));
+    }
+
+    @Test
+    public void oversizedBodyRejected() throws Exception {
+        final HttpResponse<String> response = post("/verify", "a".repeat(40 * 1024), "text/plain");
+
+        assertEquals(413, response.statusCode());
+    }
+
+    @Test
+    public void deeplyNestedTokenGetsResponse() throws Exception {
+        final Base64.Encoder base64Url = Base64.getUrlEncoder().withoutPadding();
+        final String header = "{\"alg\":" + "[".repeat(20_000);
+        final String jws = base64Url.encodeToString(header.getBytes(StandardCharsets.UTF_8)) + ".e30.c2ln";
+
+        final HttpResponse<String> response = post("/verify", jws, "text/plain");
+
+        assertEquals(200, response.statusCode());
+        final Map<String, Object> verdict = Json.parseObject(response.body());
+        assertEquals(Boolean.FALSE, verdict.get("valid"));
+    }
+
+    @Test
+    public void malformedEnvelopeRejected() throws Exception {
+        final HttpResponse<String> response = post("/verify", "not an envelope", "application/octet-stream");
+
+        assertEquals(400, response.statusCode());
+    }
+
+    @Test
+    public void getNotAllowedOnVerify() throws Exception {
+        final HttpResponse<String> response = client.send(HttpRequest.newBuilder(URI.create(baseUrl + "/verify")).GET().build(),
+                HttpResponse.BodyHandlers.ofString());
+
+        assertEquals(405, response.statusCode());
+    }
+
+    private static HttpResponse<String> post(String path, String body, String contentType) throws IOException, InterruptedException {
+        final HttpRequest request = HttpRequest.newBuilder(URI.create(baseUrl + path))
+                .header("Content-Type", contentType)
+                .POST(HttpRequest.BodyPublishers.ofString(body))
+                .build();
+        return client.send(request, HttpResponse.BodyHandlers.ofString());
+    }
+}
@@ -82,7 +82,7 @@ public class MainActivity extends AppCompatActivity {
         showLoading(true);
 
         Log.d(TAG, "SafetyNet start request");
-        safetyNetHelper.requestTest(this, new SafetyNetHelper.SafetyNetWrapperCallback() {
+        safetyNetHelper.requestTest(this, this, new SafetyNetHelper.SafetyNetWrapperCallback() {
             @Override
             public void error(int errorCode, String errorMessage) {
                 showLoading(false);